@@ -0,0 +1,90 @@
+package org.coderoller.springlayout;
+
+import java.util.Arrays;
+
+/**
+ * Maps positive view ids to indices of children. Unlike SparseIntArray it is an
+ * open-addressing hash table, so ids which are not ascending in child order
+ * are still inserted and looked up in constant time on average. Clearing the
+ * map keeps its arrays.
+ */
+final class IdIndexMap {
+    // Ids are positive, 0 marks an empty slot.
+    private int[] mKeys = new int[32];
+    private int[] mValues = new int[32];
+    private int mSize;
+
+    private static int hash(int id, int mask) {
+        final int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int findSlot(int id) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(id, mask);
+        int key;
+        while ((key = mKeys[slot]) != 0 && key != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return Index mapped to the given id or -1 if there is none.
+     */
+    int get(int id) {
+        if (id <= 0) {
+            return -1;
+        }
+        final int slot = findSlot(id);
+        return mKeys[slot] != 0 ? mValues[slot] : -1;
+    }
+
+    boolean containsKey(int id) {
+        return get(id) >= 0;
+    }
+
+    /**
+     * Maps the given id to the index, ids which are not positive are ignored.
+     */
+    void put(int id, int index) {
+        if (id <= 0) {
+            return;
+        }
+        int slot = findSlot(id);
+        if (mKeys[slot] == 0) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                resize(mKeys.length * 2);
+                slot = findSlot(id);
+            }
+            mKeys[slot] = id;
+            mSize++;
+        }
+        mValues[slot] = index;
+    }
+
+    private void resize(int newLen) {
+        final int[] oldKeys = mKeys;
+        final int[] oldValues = mValues;
+        mKeys = new int[newLen];
+        mValues = new int[newLen];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                final int slot = findSlot(oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mValues[slot] = oldValues[i];
+            }
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mKeys, 0);
+            mSize = 0;
+        }
+    }
+}
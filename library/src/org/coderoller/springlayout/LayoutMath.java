@@ -12,29 +12,339 @@ public class LayoutMath {
     Variable mVariablePool;
     ValueWrapper mValueWrapperPool;
     BinaryOperationValue mBinaryOperationPool;
+    SumValue mSumPool;
+    MulDivValue mMulDivPool;
 
-    public int getVariablePoolSize() {
-        int size = 0;
-        for (Variable v = mVariablePool; v != null; v = v.mPoolNext) {
-            size++;
+    private final Stats mStats = new Stats();
+    // Counters of the client currently using the LayoutMath.
+    private Stats mClientStats;
+    // Generation new nodes are assigned to, null if they are refcounted.
+    private Generation mGeneration;
+
+    private static final ThreadLocal<LayoutMath> sThreadInstance = new ThreadLocal<LayoutMath>() {
+        @Override
+        protected LayoutMath initialValue() {
+            return new LayoutMath();
         }
-        return size;
+    };
+
+    /**
+     * @return LayoutMath shared by all clients running on the calling
+     *         thread, so they can reuse each other's released nodes.
+     */
+    public static LayoutMath getThreadInstance() {
+        return sThreadInstance.get();
     }
 
-    public int getValueWrapperPoolSize() {
-        int size = 0;
-        for (ValueWrapper v = mValueWrapperPool; v != null; v = v.mPoolNext) {
-            size++;
+    /**
+     * @param clientStats
+     *            Counters updated, next to the global ones, for nodes taken
+     *            from and returned to this LayoutMath until the next call.
+     *            Used to attribute the usage of a shared instance to its
+     *            clients, may be null.
+     * @return Counters set before, to be restored when the client is done,
+     *         as clients may be nested, e.g. layouts measuring each other.
+     */
+    public Stats setClientStats(Stats clientStats) {
+        final Stats previous = mClientStats;
+        mClientStats = clientStats;
+        return previous;
+    }
+
+    private void onPoolHit(int type) {
+        mStats.onPoolHit(type);
+        if (mClientStats != null) {
+            mClientStats.onAcquired(type, true);
+        }
+    }
+
+    private void onPoolMiss(int type) {
+        mStats.onPoolMiss(type);
+        if (mClientStats != null) {
+            mClientStats.onAcquired(type, false);
+        }
+    }
+
+    private void onPooled(int type) {
+        mStats.mPooled[type]++;
+        if (mClientStats != null) {
+            mClientStats.mPooled[type]++;
+        }
+    }
+
+    private void onArenaAcquired(int type, boolean reused) {
+        mStats.onArenaAcquired(type, reused);
+        if (mClientStats != null) {
+            mClientStats.onArenaAcquired(type, reused);
+        }
+    }
+
+    private void onArenaPoolHit(int type) {
+        mStats.onArenaPoolHit(type);
+        if (mClientStats != null) {
+            mClientStats.onArenaPoolHit(type);
         }
-        return size;
+    }
+
+    private void onArenaRecycled(int type) {
+        mStats.onArenaRecycled(type);
+        if (mClientStats != null) {
+            mClientStats.onArenaRecycled(type);
+        }
+    }
+
+    /**
+     * @return New, empty generation of nodes.
+     */
+    public Generation newGeneration() {
+        return new Generation();
+    }
+
+    /**
+     * @param generation
+     *            Generation all nodes created until the next call are
+     *            assigned to, or null to create refcounted nodes.
+     */
+    public void setGeneration(Generation generation) {
+        mGeneration = generation;
+    }
+
+    private int mCompileStamp;
+    // Cached values are valid only if they were calculated in current epoch.
+    private int mEpoch = 1;
+
+    // Nodes which retain count dropped to zero. They are released in a loop
+    // instead of recursively, so long chains do not overflow the stack.
+    private Value[] mReleaseQueue = new Value[16];
+    private int mReleaseQueueSize;
+    private boolean mReleasing;
+
+    /**
+     * @return Unique stamp identifying a single {@link LayoutProgram}
+     *         compilation.
+     */
+    int nextCompileStamp() {
+        return ++mCompileStamp;
+    }
+
+    /**
+     * Invalidates cached values of all nodes in constant time.
+     */
+    public void invalidate() {
+        mEpoch++;
+    }
+
+    public int getVariablePoolSize() {
+        return mStats.mPooled[Stats.VARIABLE];
+    }
+
+    public int getValueWrapperPoolSize() {
+        return mStats.mPooled[Stats.VALUE_WRAPPER];
     }
 
     public int getBinaryOperationPoolSize() {
-        int size = 0;
-        for (BinaryOperationValue v = mBinaryOperationPool; v != null; v = v.mPoolNext) {
-            size++;
+        return mStats.mPooled[Stats.BINARY_OPERATION];
+    }
+
+    public int getSumPoolSize() {
+        return mStats.mPooled[Stats.SUM];
+    }
+
+    public int getMulDivPoolSize() {
+        return mStats.mPooled[Stats.MUL_DIV];
+    }
+
+    /**
+     * @return Snapshot of the node counters.
+     */
+    public Stats getStats() {
+        final Stats stats = new Stats();
+        getStats(stats);
+        return stats;
+    }
+
+    /**
+     * @param out
+     *            Object the node counters are copied to, so they can be
+     *            polled without allocations.
+     */
+    public void getStats(Stats out) {
+        mStats.copyTo(out);
+    }
+
+    /**
+     * Fills the pool, so that the given number of nodes of the type can be in
+     * use at once without allocating.
+     *
+     * @param type
+     *            One of the types defined in {@link Stats}.
+     * @param count
+     *            Number of nodes, e.g. the peak recorded in a previous run.
+     */
+    public void prewarm(int type, int count) {
+        // Nodes held by generations count as well, they are not returned to
+        // the pool while in use.
+        while (mStats.mAllocated[type] + mStats.mArena[type] < count) {
+            mStats.mAllocated[type]++;
+            mStats.mPooled[type]++;
+            createPooledNode(type).addToPool();
+        }
+    }
+
+    /**
+     * @param hint
+     *            Counters recorded in a previous run of the same layout, the
+     *            pools are filled up to their peaks, which include the nodes
+     *            held by generations.
+     */
+    public void prewarm(Stats hint) {
+        for (int type = 0; type < Stats.TYPE_COUNT; type++) {
+            prewarm(type, hint.getPeakLive(type));
+        }
+    }
+
+    /**
+     * @return Node taken from the pool of the given type or null if it is
+     *         empty.
+     */
+    private Value pollPool(int type) {
+        final Value node;
+        switch (type) {
+        case Stats.VARIABLE:
+            node = mVariablePool;
+            if (node != null) {
+                mVariablePool = mVariablePool.mPoolNext;
+            }
+            break;
+        case Stats.VALUE_WRAPPER:
+            node = mValueWrapperPool;
+            if (node != null) {
+                mValueWrapperPool = mValueWrapperPool.mPoolNext;
+            }
+            break;
+        case Stats.BINARY_OPERATION:
+            node = mBinaryOperationPool;
+            if (node != null) {
+                mBinaryOperationPool = mBinaryOperationPool.mPoolNext;
+            }
+            break;
+        case Stats.SUM:
+            node = mSumPool;
+            if (node != null) {
+                mSumPool = mSumPool.mPoolNext;
+            }
+            break;
+        case Stats.MUL_DIV:
+            node = mMulDivPool;
+            if (node != null) {
+                mMulDivPool = mMulDivPool.mPoolNext;
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown node type: " + type);
+        }
+        return node;
+    }
+
+    private Value createPooledNode(int type) {
+        switch (type) {
+        case Stats.VARIABLE:
+            return new Variable();
+        case Stats.VALUE_WRAPPER:
+            return new ValueWrapper();
+        case Stats.BINARY_OPERATION:
+            return new BinaryOperationValue();
+        case Stats.SUM:
+            return new SumValue();
+        case Stats.MUL_DIV:
+            return new MulDivValue();
+        default:
+            throw new IllegalArgumentException("Unknown node type: " + type);
+        }
+    }
+
+    /**
+     * Drops pooled nodes, so they can be garbage collected.
+     *
+     * @param maxPooled
+     *            Number of nodes of each type which stay in the pool.
+     * @return Number of dropped nodes.
+     */
+    public int trim(int maxPooled) {
+        int dropped = 0;
+        for (int type = 0; type < Stats.TYPE_COUNT; type++) {
+            while (mStats.mPooled[type] > maxPooled) {
+                switch (type) {
+                case Stats.VARIABLE:
+                    mVariablePool = mVariablePool.mPoolNext;
+                    break;
+                case Stats.VALUE_WRAPPER:
+                    mValueWrapperPool = mValueWrapperPool.mPoolNext;
+                    break;
+                case Stats.BINARY_OPERATION:
+                    mBinaryOperationPool = mBinaryOperationPool.mPoolNext;
+                    break;
+                case Stats.SUM:
+                    mSumPool = mSumPool.mPoolNext;
+                    break;
+                default:
+                    mMulDivPool = mMulDivPool.mPoolNext;
+                    break;
+                }
+                mStats.mPooled[type]--;
+                mStats.mAllocated[type]--;
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Retains the operand for the holder. Nodes of a generation are not
+     * refcounted, but remember that they hold a refcounted node, so it is
+     * released together with the generation.
+     */
+    private Value hold(Value holder, Value operand) {
+        if (holder.mOwner != null && operand.mOwner == null && operand != UNKNOWN_VALUE && !holder.mPinned) {
+            holder.mPinned = true;
+            holder.mOwner.pin(holder);
+        }
+        return operand.retain();
+    }
+
+    private void scheduleRelease(Value value) {
+        if (mReleaseQueueSize == mReleaseQueue.length) {
+            final Value[] releaseQueue = new Value[mReleaseQueueSize * 2];
+            System.arraycopy(mReleaseQueue, 0, releaseQueue, 0, mReleaseQueueSize);
+            mReleaseQueue = releaseQueue;
+        }
+        mReleaseQueue[mReleaseQueueSize++] = value;
+        if (mReleasing) {
+            return;
+        }
+        mReleasing = true;
+        try {
+            while (mReleaseQueueSize > 0) {
+                final Value released = mReleaseQueue[--mReleaseQueueSize];
+                mReleaseQueue[mReleaseQueueSize] = null;
+                released.mCacheEpoch = 0;
+                if (released.mProgram != null) {
+                    // Program referencing a released node must be compiled
+                    // again.
+                    released.mProgram.onStructureChanged(released);
+                    released.mProgram = null;
+                }
+                released.mCompileStamp = 0;
+                released.releaseImpl();
+                released.addToPool();
+                final int type = released.getType();
+                if (type != Stats.NO_TYPE) {
+                    onPooled(type);
+                }
+            }
+        } finally {
+            mReleasing = false;
         }
-        return size;
     }
 
     /**
@@ -51,10 +361,14 @@ public class LayoutMath {
      */
     public ValueWrapper wrap(Value value) {
         ValueWrapper ret;
-        if (mValueWrapperPool != null) {
+        if (mGeneration != null) {
+            ret = (ValueWrapper) mGeneration.acquire(Stats.VALUE_WRAPPER);
+        } else if (mValueWrapperPool != null) {
+            onPoolHit(Stats.VALUE_WRAPPER);
             ret = mValueWrapperPool;
             mValueWrapperPool = mValueWrapperPool.mPoolNext;
         } else {
+            onPoolMiss(Stats.VALUE_WRAPPER);
             ret = new ValueWrapper();
         }
         ret.setValueObject(value);
@@ -82,35 +396,116 @@ public class LayoutMath {
      */
     public Variable variable(int value) {
         Variable ret;
-        if (mVariablePool != null) {
+        if (mGeneration != null) {
+            ret = (Variable) mGeneration.acquire(Stats.VARIABLE);
+            ret.mValue = value;
+            ret.mConstant = false;
+        } else if (mVariablePool != null) {
+            onPoolHit(Stats.VARIABLE);
             ret = mVariablePool;
             ret.mValue = value;
+            ret.mConstant = false;
             mVariablePool = mVariablePool.mPoolNext;
         } else {
+            onPoolMiss(Stats.VARIABLE);
             ret = new Variable(value);
         }
         return ret;
     }
 
+    /**
+     * @param value
+     *            Value of the constant.
+     * @return Variable object which value cannot change, so it can be folded
+     *         by {@link LayoutProgram}.
+     */
+    public Variable constant(int value) {
+        final Variable ret = variable(value);
+        ret.mConstant = true;
+        return ret;
+    }
+
     public BinaryOperationValue binaryOperation(char op, Value v1, Value v2) {
         BinaryOperationValue ret;
-        if (mBinaryOperationPool != null) {
+        if (mGeneration != null) {
+            ret = (BinaryOperationValue) mGeneration.acquire(Stats.BINARY_OPERATION);
+            ret.setOperation(op, v1, v2);
+        } else if (mBinaryOperationPool != null) {
+            onPoolHit(Stats.BINARY_OPERATION);
             ret = mBinaryOperationPool;
             mBinaryOperationPool.setOperation(op, v1, v2);
             mBinaryOperationPool = mBinaryOperationPool.mPoolNext;
         } else {
+            onPoolMiss(Stats.BINARY_OPERATION);
             ret = new BinaryOperationValue(op, v1, v2);
         }
         return ret;
     }
 
+    /**
+     * @param values
+     *            Operands of the sum, the array is not retained.
+     * @param count
+     *            Number of operands to be taken from the array.
+     * @return Sum of all the operands.
+     */
+    public SumValue sum(Value[] values, int count) {
+        SumValue ret;
+        if (mGeneration != null) {
+            ret = (SumValue) mGeneration.acquire(Stats.SUM);
+        } else if (mSumPool != null) {
+            onPoolHit(Stats.SUM);
+            ret = mSumPool;
+            mSumPool = mSumPool.mPoolNext;
+        } else {
+            onPoolMiss(Stats.SUM);
+            ret = new SumValue();
+        }
+        ret.setOperands(values, count);
+        return ret;
+    }
+
+    /**
+     * @return Value of (value * factor / denominator), calculated without
+     *         overflowing the intermediate product.
+     */
+    public MulDivValue mulDiv(Value value, Value factor, Value denominator) {
+        MulDivValue ret;
+        if (mGeneration != null) {
+            ret = (MulDivValue) mGeneration.acquire(Stats.MUL_DIV);
+        } else if (mMulDivPool != null) {
+            onPoolHit(Stats.MUL_DIV);
+            ret = mMulDivPool;
+            mMulDivPool = mMulDivPool.mPoolNext;
+        } else {
+            onPoolMiss(Stats.MUL_DIV);
+            ret = new MulDivValue();
+        }
+        ret.setOperands(value, factor, denominator);
+        return ret;
+    }
+
     public abstract class Value {
-        public final int INVALID = Integer.MIN_VALUE;
-        protected int mValueCache = INVALID;
+        protected int mValueCache;
+        int mCacheEpoch;
         public int mRetainCount;
+        // Used by LayoutProgram to memoize the register assigned to the node.
+        int mCompileStamp, mRegister;
+        // Program which compiled the node, notified about its changes.
+        LayoutProgram mProgram;
+        // Generation owning the node, null if the node is refcounted.
+        Generation mOwner;
+        // Next node owned by the same generation.
+        Value mArenaNext;
+        // True if the node of a generation holds refcounted nodes.
+        boolean mPinned;
 
         final int getValue() {
-            return (mValueCache == INVALID) ? (mValueCache = getValueImpl()) : mValueCache;
+            if (mCacheEpoch != mEpoch) {
+                mValueCache = getValueImpl();
+                mCacheEpoch = mEpoch;
+            }
+            return mValueCache;
         }
 
         public abstract Value retain();
@@ -121,15 +516,35 @@ public class LayoutMath {
 
         abstract void addToPool();
 
-        abstract void invalidate();
+        /**
+         * @return Type of the node as defined in {@link Stats},
+         *         {@link Stats#NO_TYPE} for nodes which are not pooled.
+         */
+        abstract int getType();
+
+        /**
+         * @return Opcode used when lowering the node into a
+         *         {@link LayoutProgram}.
+         */
+        abstract byte getOpcode();
 
+        int getOperandCount() {
+            return 0;
+        }
+
+        Value getOperand(int index) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        /**
+         * Releases the node when it is not retained anymore. Nodes of a
+         * generation are only released together with it.
+         */
         public void release() {
-            if (mRetainCount > 0) {
+            if (mOwner == null && mRetainCount > 0) {
                 mRetainCount--;
                 if (mRetainCount == 0) {
-                    invalidate();
-                    releaseImpl();
-                    addToPool();
+                    scheduleRelease(this);
                 }
             }
         }
@@ -157,10 +572,15 @@ public class LayoutMath {
         public BinaryOperationValue max(Value other) {
             return binaryOperation('M', this, other);
         }
+
+        public MulDivValue mulDiv(Value factor, Value denominator) {
+            return LayoutMath.this.mulDiv(this, factor, denominator);
+        }
     }
 
     public class Variable extends Value {
         private int mValue;
+        private boolean mConstant;
         protected Variable mPoolNext;
 
         private Variable() {
@@ -173,17 +593,44 @@ public class LayoutMath {
 
         @Override
         int getValueImpl() {
+            if (mValue == LayoutProgram.UNKNOWN) {
+                throw new IllegalStateException("Exact value not known");
+            }
             return mValue;
         }
 
-        void setValue(int value) {
-            mValueCache = INVALID;
-            mValue = value;
+        int getRawValue() {
+            return mValue;
+        }
+
+        public void setValue(int value) {
+            if (mConstant) {
+                throw new IllegalStateException("Constant value cannot be changed");
+            }
+            if (mValue != value) {
+                mValue = value;
+                mEpoch++;
+                if (mProgram != null) {
+                    mProgram.onVariableChanged(this);
+                }
+            }
+        }
+
+        boolean isConstant() {
+            return mConstant;
+        }
+
+        /**
+         * Marks the variable as not known yet, dependant values will not be
+         * calculated until the next {@link #setValue(int)}.
+         */
+        public void setUnknown() {
+            setValue(LayoutProgram.UNKNOWN);
         }
 
         @Override
-        void invalidate() {
-            mValueCache = INVALID;
+        byte getOpcode() {
+            return LayoutProgram.OP_LOAD;
         }
 
         @Override
@@ -206,6 +653,11 @@ public class LayoutMath {
             mPoolNext = mVariablePool;
             mVariablePool = this;
         }
+
+        @Override
+        int getType() {
+            return Stats.VARIABLE;
+        }
     }
 
     public class ValueWrapper extends Value {
@@ -215,44 +667,60 @@ public class LayoutMath {
         private ValueWrapper() {
         }
 
-        @Override
-        void invalidate() {
-            if (mValueCache != INVALID) {
-                mValueCache = INVALID;
-                mValue.invalidate();
-            }
-        }
-
         @Override
         int getValueImpl() {
             return mValue.getValue();
         }
 
         void setValueObject(ValueWrapper value) {
-            invalidate();
+            mEpoch++;
+            if (mProgram != null) {
+                mProgram.onStructureChanged(this);
+            }
             if (mValue != null) {
                 mValue.release();
             }
             if (value.getValueObject() instanceof ValueWrapper) {
                 // To avoid having depeer than one-level wrappers
-                mValue = value.getValueObject().retain();
+                mValue = hold(this, value.getValueObject());
             } else {
-                mValue = value.retain();
+                mValue = hold(this, value);
             }
         }
 
         public void setValueObject(Value value) {
-            invalidate();
+            mEpoch++;
+            if (mProgram != null) {
+                mProgram.onStructureChanged(this);
+            }
             if (mValue != null) {
                 mValue.release();
             }
-            mValue = value.retain();
+            mValue = hold(this, value);
         }
 
         Value getValueObject() {
             return mValue;
         }
 
+        @Override
+        byte getOpcode() {
+            return LayoutProgram.OP_MOVE;
+        }
+
+        @Override
+        int getOperandCount() {
+            return 1;
+        }
+
+        @Override
+        Value getOperand(int index) {
+            if (index != 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mValue;
+        }
+
         @Override
         public String toString() {
             return mValue.toString();
@@ -275,6 +743,11 @@ public class LayoutMath {
             mPoolNext = mValueWrapperPool;
             mValueWrapperPool = this;
         }
+
+        @Override
+        int getType() {
+            return Stats.VALUE_WRAPPER;
+        }
     }
 
     public class UnknownValue extends Value {
@@ -287,7 +760,8 @@ public class LayoutMath {
         }
 
         @Override
-        void invalidate() {
+        byte getOpcode() {
+            return LayoutProgram.OP_UNKNOWN;
         }
 
         @Override
@@ -303,6 +777,11 @@ public class LayoutMath {
         void addToPool() {
         }
 
+        @Override
+        int getType() {
+            return Stats.NO_TYPE;
+        }
+
         @Override
         public Value retain() {
             return this;
@@ -314,23 +793,19 @@ public class LayoutMath {
         Value mV1, mV2;
         protected BinaryOperationValue mPoolNext;
 
+        private BinaryOperationValue() {
+            mV1 = UNKNOWN_VALUE;
+            mV2 = UNKNOWN_VALUE;
+        }
+
         private BinaryOperationValue(char op, Value v1, Value v2) {
             setOperation(op, v1, v2);
         }
 
         void setOperation(char op, Value v1, Value v2) {
             mOp = op;
-            mV1 = v1.retain();
-            mV2 = v2.retain();
-        }
-
-        @Override
-        void invalidate() {
-            if (mValueCache != INVALID) {
-                mValueCache = INVALID;
-                mV1.invalidate();
-                mV2.invalidate();
-            }
+            mV1 = hold(this, v1);
+            mV2 = hold(this, v2);
         }
 
         @Override
@@ -353,6 +828,43 @@ public class LayoutMath {
             }
         }
 
+        @Override
+        byte getOpcode() {
+            switch (mOp) {
+            case '+':
+                return LayoutProgram.OP_ADD;
+            case '-':
+                return LayoutProgram.OP_SUBTRACT;
+            case '*':
+                return LayoutProgram.OP_MULTIPLY;
+            case '/':
+                return LayoutProgram.OP_DIVIDE;
+            case 'm':
+                return LayoutProgram.OP_MIN;
+            case 'M':
+                return LayoutProgram.OP_MAX;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + mOp);
+            }
+        }
+
+        @Override
+        int getOperandCount() {
+            return 2;
+        }
+
+        @Override
+        Value getOperand(int index) {
+            switch (index) {
+            case 0:
+                return mV1;
+            case 1:
+                return mV2;
+            default:
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
         @Override
         public String toString() {
             return "( " + mV1.toString() + " " + mOp + " " + mV2.toString() + " )";
@@ -377,5 +889,474 @@ public class LayoutMath {
             mPoolNext = mBinaryOperationPool;
             mBinaryOperationPool = this;
         }
+
+        @Override
+        int getType() {
+            return Stats.BINARY_OPERATION;
+        }
+    }
+
+    public class SumValue extends Value {
+        private Value[] mOperands = new Value[4];
+        private int mCount;
+        protected SumValue mPoolNext;
+
+        private SumValue() {
+        }
+
+        void setOperands(Value[] values, int count) {
+            if (mOperands.length < count) {
+                mOperands = new Value[count];
+            }
+            for (int i = 0; i < count; i++) {
+                mOperands[i] = hold(this, values[i]);
+            }
+            mCount = count;
+        }
+
+        @Override
+        int getValueImpl() {
+            int sum = 0;
+            for (int i = 0; i < mCount; i++) {
+                sum += mOperands[i].getValue();
+            }
+            return sum;
+        }
+
+        @Override
+        byte getOpcode() {
+            return LayoutProgram.OP_SUM;
+        }
+
+        @Override
+        int getOperandCount() {
+            return mCount;
+        }
+
+        @Override
+        Value getOperand(int index) {
+            if (index >= mCount) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mOperands[index];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("(");
+            for (int i = 0; i < mCount; i++) {
+                builder.append(i == 0 ? " " : " + ").append(mOperands[i]);
+            }
+            return builder.append(" )").toString();
+        }
+
+        @Override
+        void releaseImpl() {
+            for (int i = 0; i < mCount; i++) {
+                mOperands[i].release();
+                mOperands[i] = null;
+            }
+            mCount = 0;
+        }
+
+        @Override
+        public SumValue retain() {
+            mRetainCount++;
+            return this;
+        }
+
+        @Override
+        void addToPool() {
+            mPoolNext = mSumPool;
+            mSumPool = this;
+        }
+
+        @Override
+        int getType() {
+            return Stats.SUM;
+        }
+    }
+
+    public class MulDivValue extends Value {
+        Value mValue, mFactor, mDenominator;
+        protected MulDivValue mPoolNext;
+
+        private MulDivValue() {
+        }
+
+        void setOperands(Value value, Value factor, Value denominator) {
+            mValue = hold(this, value);
+            mFactor = hold(this, factor);
+            mDenominator = hold(this, denominator);
+        }
+
+        @Override
+        int getValueImpl() {
+            return (int) ((long) mValue.getValue() * mFactor.getValue() / mDenominator.getValue());
+        }
+
+        @Override
+        byte getOpcode() {
+            return LayoutProgram.OP_MULDIV;
+        }
+
+        @Override
+        int getOperandCount() {
+            return 3;
+        }
+
+        @Override
+        Value getOperand(int index) {
+            switch (index) {
+            case 0:
+                return mValue;
+            case 1:
+                return mFactor;
+            case 2:
+                return mDenominator;
+            default:
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "( " + mValue.toString() + " * " + mFactor.toString() + " / " + mDenominator.toString() + " )";
+        }
+
+        @Override
+        void releaseImpl() {
+            mValue.release();
+            mFactor.release();
+            mDenominator.release();
+            mValue = UNKNOWN_VALUE;
+            mFactor = UNKNOWN_VALUE;
+            mDenominator = UNKNOWN_VALUE;
+        }
+
+        @Override
+        public MulDivValue retain() {
+            mRetainCount++;
+            return this;
+        }
+
+        @Override
+        void addToPool() {
+            mPoolNext = mMulDivPool;
+            mMulDivPool = this;
+        }
+
+        @Override
+        int getType() {
+            return Stats.MUL_DIV;
+        }
+    }
+
+    /**
+     * Arena of the nodes built for one layout hierarchy. Nodes created while
+     * the generation is set with {@link LayoutMath#setGeneration} are not
+     * refcounted: {@link #release()} releases all of them at once and they
+     * are reused by the nodes built next. Refcounted nodes referenced by the
+     * generation are retained until it is released, refcounted nodes which
+     * reference it must not outlive it.
+     */
+    public class Generation {
+        // Nodes of each type, the ones before the cursor are in use.
+        private final Value[] mHeads = new Value[Stats.TYPE_COUNT];
+        private final Value[] mTails = new Value[Stats.TYPE_COUNT];
+        private final Value[] mCursors = new Value[Stats.TYPE_COUNT];
+        // Nodes holding refcounted nodes.
+        private Value[] mPinned = new Value[16];
+        private int mPinnedSize;
+        // Programs which compiled nodes of the generation.
+        private LayoutProgram[] mPrograms = new LayoutProgram[2];
+        private int mProgramsSize;
+
+        private Generation() {
+        }
+
+        Value acquire(int type) {
+            Value node = mCursors[type];
+            if (node != null) {
+                mCursors[type] = node.mArenaNext;
+                onArenaAcquired(type, true);
+            } else {
+                // The generation grows with released nodes first, e.g. the
+                // ones recycled by other generations or prewarmed.
+                node = pollPool(type);
+                if (node != null) {
+                    onArenaPoolHit(type);
+                } else {
+                    node = createPooledNode(type);
+                    onArenaAcquired(type, false);
+                }
+                node.mOwner = this;
+                if (mTails[type] == null) {
+                    mHeads[type] = node;
+                } else {
+                    mTails[type].mArenaNext = node;
+                }
+                mTails[type] = node;
+            }
+            node.mRetainCount = 0;
+            node.mCacheEpoch = 0;
+            node.mCompileStamp = 0;
+            node.mProgram = null;
+            return node;
+        }
+
+        void pin(Value holder) {
+            if (mPinnedSize == mPinned.length) {
+                final Value[] pinned = new Value[mPinnedSize * 2];
+                System.arraycopy(mPinned, 0, pinned, 0, mPinnedSize);
+                mPinned = pinned;
+            }
+            mPinned[mPinnedSize++] = holder;
+        }
+
+        void onCompiled(LayoutProgram program) {
+            for (int i = 0; i < mProgramsSize; i++) {
+                if (mPrograms[i] == program) {
+                    return;
+                }
+            }
+            if (mProgramsSize == mPrograms.length) {
+                final LayoutProgram[] programs = new LayoutProgram[mProgramsSize * 2];
+                System.arraycopy(mPrograms, 0, programs, 0, mProgramsSize);
+                mPrograms = programs;
+            }
+            mPrograms[mProgramsSize++] = program;
+        }
+
+        /**
+         * Releases all nodes of the generation. It takes constant time,
+         * except for releasing the refcounted nodes they hold.
+         */
+        public void release() {
+            for (int i = 0; i < mPinnedSize; i++) {
+                final Value holder = mPinned[i];
+                mPinned[i] = null;
+                holder.mPinned = false;
+                holder.releaseImpl();
+            }
+            mPinnedSize = 0;
+            for (int i = 0; i < mProgramsSize; i++) {
+                mPrograms[i].invalidate();
+                mPrograms[i] = null;
+            }
+            mProgramsSize = 0;
+            System.arraycopy(mHeads, 0, mCursors, 0, Stats.TYPE_COUNT);
+        }
+
+        /**
+         * Releases the generation and moves its nodes to the pools of the
+         * {@link LayoutMath}, so they can be used by other clients or
+         * trimmed.
+         */
+        public void recycle() {
+            release();
+            // Operands are dropped first, while releasing the nodes of the
+            // generation is still a no-op.
+            for (int type = 0; type < Stats.TYPE_COUNT; type++) {
+                for (Value node = mHeads[type]; node != null; node = node.mArenaNext) {
+                    node.releaseImpl();
+                }
+            }
+            for (int type = 0; type < Stats.TYPE_COUNT; type++) {
+                Value node = mHeads[type];
+                while (node != null) {
+                    final Value next = node.mArenaNext;
+                    node.mOwner = null;
+                    node.mArenaNext = null;
+                    node.mRetainCount = 0;
+                    node.mCacheEpoch = 0;
+                    node.mCompileStamp = 0;
+                    node.mProgram = null;
+                    node.addToPool();
+                    onArenaRecycled(type);
+                    node = next;
+                }
+                mHeads[type] = null;
+                mTails[type] = null;
+                mCursors[type] = null;
+            }
+        }
+    }
+
+    /**
+     * Counters of the nodes created by {@link LayoutMath}, per node type.
+     * When used as client counters (see {@link LayoutMath#setClientStats})
+     * allocated and pooled nodes are the ones the client took from and
+     * returned to the LayoutMath.
+     */
+    public static class Stats {
+        public static final int VARIABLE = 0;
+        public static final int VALUE_WRAPPER = 1;
+        public static final int BINARY_OPERATION = 2;
+        public static final int SUM = 3;
+        public static final int MUL_DIV = 4;
+        public static final int TYPE_COUNT = 5;
+        /**
+         * Type of the shared unknown value, which is not pooled nor counted.
+         */
+        public static final int NO_TYPE = -1;
+
+        private static final String[] TYPE_NAMES = new String[] { "Variable", "ValueWrapper", "BinaryOperation", "Sum", "MulDiv" };
+
+        final int[] mAllocated = new int[TYPE_COUNT];
+        final int[] mPooled = new int[TYPE_COUNT];
+        final int[] mHits = new int[TYPE_COUNT];
+        final int[] mMisses = new int[TYPE_COUNT];
+        final int[] mPeakLive = new int[TYPE_COUNT];
+        final int[] mArena = new int[TYPE_COUNT];
+
+        void onPoolHit(int type) {
+            mHits[type]++;
+            mPooled[type]--;
+            updatePeak(type);
+        }
+
+        void onPoolMiss(int type) {
+            mMisses[type]++;
+            mAllocated[type]++;
+            updatePeak(type);
+        }
+
+        void onAcquired(int type, boolean poolHit) {
+            if (poolHit) {
+                mHits[type]++;
+            } else {
+                mMisses[type]++;
+            }
+            mAllocated[type]++;
+            updatePeak(type);
+        }
+
+        void onArenaAcquired(int type, boolean reused) {
+            if (reused) {
+                mHits[type]++;
+            } else {
+                mMisses[type]++;
+                mArena[type]++;
+                updatePeak(type);
+            }
+        }
+
+        void onArenaPoolHit(int type) {
+            mHits[type]++;
+            mAllocated[type]--;
+            mPooled[type]--;
+            mArena[type]++;
+            updatePeak(type);
+        }
+
+        void onArenaRecycled(int type) {
+            mArena[type]--;
+            mAllocated[type]++;
+            mPooled[type]++;
+        }
+
+        private void updatePeak(int type) {
+            final int live = getLive(type);
+            if (live > mPeakLive[type]) {
+                mPeakLive[type] = live;
+            }
+        }
+
+        void copyTo(Stats out) {
+            System.arraycopy(mAllocated, 0, out.mAllocated, 0, TYPE_COUNT);
+            System.arraycopy(mPooled, 0, out.mPooled, 0, TYPE_COUNT);
+            System.arraycopy(mHits, 0, out.mHits, 0, TYPE_COUNT);
+            System.arraycopy(mMisses, 0, out.mMisses, 0, TYPE_COUNT);
+            System.arraycopy(mPeakLive, 0, out.mPeakLive, 0, TYPE_COUNT);
+            System.arraycopy(mArena, 0, out.mArena, 0, TYPE_COUNT);
+        }
+
+        /**
+         * @return Number of nodes of the given type owned by the
+         *         {@link LayoutMath}, both live and pooled.
+         */
+        public int getAllocated(int type) {
+            return mAllocated[type];
+        }
+
+        /**
+         * @return Number of released nodes of the given type waiting for
+         *         reuse.
+         */
+        public int getPooled(int type) {
+            return mPooled[type];
+        }
+
+        /**
+         * @return Number of nodes of the given type currently in use,
+         *         including the ones owned by generations.
+         */
+        public int getLive(int type) {
+            return mAllocated[type] - mPooled[type] + mArena[type];
+        }
+
+        /**
+         * @return Number of nodes of the given type owned by generations, in
+         *         use or waiting for reuse. They are not counted as allocated
+         *         until they are recycled into the pools, nodes taken from the
+         *         pools by a generation are no longer counted as allocated.
+         */
+        public int getArenaSize(int type) {
+            return mArena[type];
+        }
+
+        /**
+         * @return Number of nodes of the given type taken from the pool or
+         *         reused by a generation.
+         */
+        public int getHits(int type) {
+            return mHits[type];
+        }
+
+        /**
+         * @return Number of nodes of the given type created because the pool
+         *         or the generation was empty.
+         */
+        public int getMisses(int type) {
+            return mMisses[type];
+        }
+
+        /**
+         * @return Highest number of nodes of the given type in use at once.
+         */
+        public int getPeakLive(int type) {
+            return mPeakLive[type];
+        }
+
+        public int getTotalLive() {
+            int live = 0;
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                live += getLive(type);
+            }
+            return live;
+        }
+
+        public int getTotalPooled() {
+            int pooled = 0;
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                pooled += mPooled[type];
+            }
+            return pooled;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                if (type > 0) {
+                    builder.append(", ");
+                }
+                builder.append(TYPE_NAMES[type]).append(" { allocated = ").append(mAllocated[type]).append(", pooled = ")
+                        .append(mPooled[type]).append(", live = ").append(getLive(type)).append(", hits = ").append(mHits[type])
+                        .append(", misses = ").append(mMisses[type]).append(", peak = ").append(mPeakLive[type]).append(", arena = ").append(mArena[type]).append(" }");
+            }
+            return builder.toString();
+        }
     }
 }
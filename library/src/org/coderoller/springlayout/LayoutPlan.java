@@ -0,0 +1,94 @@
+package org.coderoller.springlayout;
+
+/**
+ * Compiled code of a {@link LayoutProgram} detached from the graph it was
+ * compiled from, so programs of layouts with the same structure, e.g. rows of
+ * a list inflated from the same XML, can share it instead of compiling their
+ * own. Variables are referred to by slots, which each program binds to its
+ * own variables, and the registers of the roots are kept in the order they
+ * were compiled in.
+ * <p>
+ * Plans are immutable. They are kept in a small process-wide registry keyed
+ * by a structural fingerprint of the layout, the oldest plan is dropped when
+ * it is full. Outside of the package a plan is only passed from
+ * {@link LayoutProgram#createPlan} to {@link LayoutProgram#adopt}.
+ */
+public final class LayoutPlan {
+    private static final int REGISTRY_CAPACITY = 32;
+    private static final int[][] sKeys = new int[REGISTRY_CAPACITY][];
+    private static final int[] sHashes = new int[REGISTRY_CAPACITY];
+    private static final LayoutPlan[] sPlans = new LayoutPlan[REGISTRY_CAPACITY];
+    private static int sNext;
+
+    final int size;
+    final int nodeCount;
+    final byte[] ops;
+    final int[] operands1, operands2, extraOperands;
+    final int[] dependentsStart, dependents;
+    // Slot of the variable loaded by each register, -1 for other
+    // instructions.
+    final int[] loadSlots;
+    final int[] roots;
+
+    LayoutPlan(int size, int nodeCount, byte[] ops, int[] operands1, int[] operands2, int[] extraOperands,
+            int[] dependentsStart, int[] dependents, int[] loadSlots, int[] roots) {
+        this.size = size;
+        this.nodeCount = nodeCount;
+        this.ops = ops;
+        this.operands1 = operands1;
+        this.operands2 = operands2;
+        this.extraOperands = extraOperands;
+        this.dependentsStart = dependentsStart;
+        this.dependents = dependents;
+        this.loadSlots = loadSlots;
+        this.roots = roots;
+    }
+
+    private static int hash(int[] key, int keyLength) {
+        int hash = keyLength;
+        for (int i = 0; i < keyLength; i++) {
+            hash = hash * 31 + key[i];
+        }
+        return hash;
+    }
+
+    /**
+     * @return Plan registered with the given fingerprint or null if there is
+     *         none.
+     */
+    static LayoutPlan find(int[] key, int keyLength) {
+        final int hash = hash(key, keyLength);
+        synchronized (sPlans) {
+            for (int i = 0; i < REGISTRY_CAPACITY; i++) {
+                final int[] other = sKeys[i];
+                if (other != null && sHashes[i] == hash && other.length == keyLength && equals(other, key, keyLength)) {
+                    return sPlans[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean equals(int[] a, int[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes the plan available to layouts with the given fingerprint.
+     */
+    static void register(int[] key, int keyLength, LayoutPlan plan) {
+        final int[] copy = new int[keyLength];
+        System.arraycopy(key, 0, copy, 0, keyLength);
+        synchronized (sPlans) {
+            sKeys[sNext] = copy;
+            sHashes[sNext] = hash(copy, keyLength);
+            sPlans[sNext] = plan;
+            sNext = (sNext + 1) % REGISTRY_CAPACITY;
+        }
+    }
+}
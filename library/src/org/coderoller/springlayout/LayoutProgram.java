@@ -0,0 +1,998 @@
+package org.coderoller.springlayout;
+
+import java.util.Arrays;
+
+import org.coderoller.springlayout.LayoutMath.Value;
+import org.coderoller.springlayout.LayoutMath.Variable;
+
+/**
+ * Linear form of a {@link LayoutMath} value graph. Nodes reachable from the
+ * registered roots are lowered into topologically ordered opcode and operand
+ * arrays, so solving the layout is a single loop over an integer register
+ * file instead of a recursive walk through the graph.
+ * <p>
+ * The graph is optimized while it is lowered: wrappers are replaced with the
+ * register of the wrapped value, operations on constants are folded and
+ * structurally identical operations share a single instruction.
+ * <p>
+ * Once solved, the program keeps the reverse edges of the instructions.
+ * Changing a {@link Variable} marks only its register dirty and the next
+ * {@link #solve()} re-evaluates just the instructions depending on it, in
+ * topological order, stopping wherever a value turns out not to change.
+ * <p>
+ * Compiled code can be detached into a {@link LayoutPlan} and adopted by
+ * programs compiled from structurally identical graphs, which then keep only
+ * their own registers and variables.
+ *
+ * @author sulewicz
+ *
+ */
+public class LayoutProgram {
+    static final byte OP_UNKNOWN = 0;
+    static final byte OP_LOAD = 1;
+    static final byte OP_MOVE = 2;
+    static final byte OP_ADD = 3;
+    static final byte OP_SUBTRACT = 4;
+    static final byte OP_MULTIPLY = 5;
+    static final byte OP_DIVIDE = 6;
+    static final byte OP_MIN = 7;
+    static final byte OP_MAX = 8;
+    static final byte OP_CONSTANT = 9;
+    static final byte OP_SUM = 10;
+    static final byte OP_MULDIV = 11;
+
+    /**
+     * Register content of nodes which value cannot be calculated.
+     */
+    static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final LayoutMath mLayoutMath;
+    private int mCompileStamp;
+
+    private byte[] mOps = new byte[INITIAL_CAPACITY];
+    private int[] mOperands1 = new int[INITIAL_CAPACITY];
+    private int[] mOperands2 = new int[INITIAL_CAPACITY];
+    private Value[] mNodes = new Value[INITIAL_CAPACITY];
+    private int[] mRegisters = new int[INITIAL_CAPACITY];
+    private int mSize;
+    private boolean mUpToDate;
+    private int mNodeCount;
+    // The code arrays belong to an adopted LayoutPlan and must not be
+    // written to. The own arrays are kept aside until the program is
+    // compiled again.
+    private boolean mSharedCode;
+    private byte[] mOwnOps;
+    private int[] mOwnOperands1, mOwnOperands2, mOwnExtraOperands, mOwnDependentsStart, mOwnDependents;
+
+    // Open addressing table of instructions (register + 1) used to share
+    // structurally identical instructions.
+    private int[] mInstructionTable = new int[INITIAL_CAPACITY * 2];
+    private int[] mDeferredConstants = new int[INITIAL_CAPACITY];
+    private int mDeferredConstantsSize;
+
+    // Operands of the instructions taking more than two of them. Such
+    // instructions keep the offset of the first operand in mOperands1 and
+    // their count in mOperands2.
+    private int[] mExtraOperands = new int[INITIAL_CAPACITY];
+    private int mExtraOperandsSize;
+
+    // Work stack used for the depth-first traversal of the graph.
+    private Value[] mStack = new Value[INITIAL_CAPACITY];
+    private int[] mStackOperands = new int[INITIAL_CAPACITY];
+    private int mStackSize;
+
+    // Number of instructions evaluated by solve() so far.
+    private int mSolvedSize;
+    private int mSolveCount;
+    // Solve count in which the value of a register changed for the last time.
+    private int[] mChangeStamps = new int[INITIAL_CAPACITY];
+
+    // Reverse edges, dependents of register r are stored in mDependents
+    // between mDependentsStart[r] and mDependentsStart[r + 1].
+    private int[] mDependentsStart = new int[INITIAL_CAPACITY + 1];
+    private int[] mDependents = new int[INITIAL_CAPACITY];
+    private int mDependentsSize;
+
+    // Min-heap of dirty registers, so they are evaluated in topological
+    // order.
+    private int[] mDirtyHeap = new int[INITIAL_CAPACITY];
+    private boolean[] mDirty = new boolean[INITIAL_CAPACITY];
+    private int mDirtyHeapSize;
+
+    // Registers depending on mSource, computed for the first mSourceSize
+    // instructions.
+    private Variable mSource;
+    private boolean[] mDependsOnSource = new boolean[INITIAL_CAPACITY];
+    private int mSourceSize;
+
+    public LayoutProgram(LayoutMath layoutMath) {
+        mLayoutMath = layoutMath;
+        mCompileStamp = layoutMath.nextCompileStamp();
+    }
+
+    /**
+     * Drops all instructions, so the program can be compiled again.
+     */
+    public void reset() {
+        for (int i = 0; i < mSize; i++) {
+            mNodes[i] = null;
+        }
+        if (mSharedCode) {
+            restoreOwnCode();
+        }
+        for (int i = 0; i < mDirtyHeapSize; i++) {
+            mDirty[mDirtyHeap[i]] = false;
+        }
+        mDirtyHeapSize = 0;
+        mSize = 0;
+        mExtraOperandsSize = 0;
+        mSolvedSize = 0;
+        mDependentsSize = 0;
+        mNodeCount = 0;
+        mDeferredConstantsSize = 0;
+        mSource = null;
+        mSourceSize = 0;
+        Arrays.fill(mInstructionTable, 0);
+        mCompileStamp = mLayoutMath.nextCompileStamp();
+        mUpToDate = true;
+    }
+
+    /**
+     * @return False if a node compiled into the program changed its operands
+     *         since the last {@link #reset()}, which means the program has to
+     *         be compiled again. Changes of nodes compiled into other
+     *         programs do not affect it.
+     */
+    public boolean isUpToDate() {
+        return mUpToDate;
+    }
+
+    /**
+     * @return True if the program runs the code of a {@link LayoutPlan} it
+     *         adopted instead of its own.
+     */
+    public boolean usesSharedCode() {
+        return mSharedCode;
+    }
+
+    /**
+     * Lowers the graph reachable from the given value into the program.
+     * Nodes already compiled are shared. The graph is traversed with an
+     * explicit stack, so its depth is not limited by the thread stack size.
+     *
+     * @param value
+     *            Root of the graph.
+     * @return Register holding the value after {@link #solve()}.
+     * @throws CircularDependencyException
+     *             if the value depends on itself. The program has to be
+     *             {@link #reset()} afterwards.
+     * @throws IllegalStateException
+     *             if the program adopted a {@link LayoutPlan} since the last
+     *             {@link #reset()}.
+     */
+    public int compile(Value value) {
+        final int done = mCompileStamp, visiting = -mCompileStamp;
+        if (mSharedCode) {
+            // Registers of the nodes of an adopted plan are not known.
+            throw new IllegalStateException("Program uses a shared plan and has to be reset before compiling");
+        }
+        if (value.mCompileStamp == done) {
+            value.mRegister = materialize(value.mRegister);
+            return value.mRegister;
+        }
+        push(value);
+        while (mStackSize > 0) {
+            final int top = mStackSize - 1;
+            final Value node = mStack[top];
+            final int operandIndex = mStackOperands[top];
+            if (operandIndex < node.getOperandCount()) {
+                mStackOperands[top]++;
+                final Value operand = node.getOperand(operandIndex);
+                if (operand.mCompileStamp == visiting) {
+                    throw createCycleException(operand);
+                } else if (operand.mCompileStamp != done) {
+                    push(operand);
+                }
+            } else {
+                node.mRegister = lower(node);
+                markCompiled(node);
+                mStack[top] = null;
+                mStackSize = top;
+            }
+        }
+        value.mRegister = materialize(value.mRegister);
+        return value.mRegister;
+    }
+
+    private void markCompiled(Value node) {
+        node.mCompileStamp = mCompileStamp;
+        node.mProgram = this;
+        if (node.mOwner != null) {
+            node.mOwner.onCompiled(this);
+        }
+        mNodeCount++;
+    }
+
+    private void clearStack() {
+        for (int i = 0; i < mStackSize; i++) {
+            mStack[i] = null;
+        }
+        mStackSize = 0;
+    }
+
+    private void restoreOwnCode() {
+        mSharedCode = false;
+        mOps = mOwnOps;
+        mOperands1 = mOwnOperands1;
+        mOperands2 = mOwnOperands2;
+        mExtraOperands = mOwnExtraOperands;
+        mDependentsStart = mOwnDependentsStart;
+        mDependents = mOwnDependents;
+        mOwnOps = null;
+        mOwnOperands1 = mOwnOperands2 = mOwnExtraOperands = mOwnDependentsStart = mOwnDependents = null;
+        if (mOps.length < mNodes.length) {
+            mOps = new byte[mNodes.length];
+            mOperands1 = new int[mNodes.length];
+            mOperands2 = new int[mNodes.length];
+        }
+    }
+
+    /**
+     * Detaches the compiled code from the graph, so structurally identical
+     * graphs can {@link #adopt(LayoutPlan, Variable[], Value[], int)} it
+     * instead of being compiled.
+     *
+     * @param slots
+     *            Variables the program may load, a plan refers to them by
+     *            their index.
+     * @param slotCount
+     *            Number of the variables.
+     * @param roots
+     *            Registers returned by {@link #compile(Value)} for the roots,
+     *            in the order they were compiled in.
+     * @param rootCount
+     *            Number of the roots.
+     * @return The plan or null if the program is not up to date or loads a
+     *         variable which is not one of the slots.
+     */
+    public LayoutPlan createPlan(Variable[] slots, int slotCount, int[] roots, int rootCount) {
+        if (!mUpToDate) {
+            return null;
+        }
+        final int size = mSize;
+        final int[] loadSlots = new int[size];
+        Arrays.fill(loadSlots, -1);
+        for (int i = 0; i < slotCount; i++) {
+            final Variable variable = slots[i];
+            if (variable.mCompileStamp == mCompileStamp && variable.mRegister >= 0 && mNodes[variable.mRegister] == variable) {
+                loadSlots[variable.mRegister] = i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (mOps[i] == OP_LOAD && loadSlots[i] < 0) {
+                return null;
+            }
+        }
+        if (mDependentsSize != size) {
+            buildDependents();
+        }
+        final byte[] ops = new byte[size];
+        System.arraycopy(mOps, 0, ops, 0, size);
+        return new LayoutPlan(size, mNodeCount, ops, copyOf(mOperands1, size), copyOf(mOperands2, size),
+                copyOf(mExtraOperands, mExtraOperandsSize), copyOf(mDependentsStart, size + 1),
+                copyOf(mDependents, mDependentsStart[size]), loadSlots, copyOf(roots, rootCount));
+    }
+
+    // Arrays.copyOf() is not available before API level 9.
+    private static int[] copyOf(int[] array, int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Resets the program and takes over the code of the plan instead of
+     * compiling the graph. The variables are bound to the slots of the plan
+     * and the rest of the graph reachable from the roots is marked as
+     * compiled, so its changes are noticed as usual.
+     *
+     * @param plan
+     *            Plan created from a graph of the same structure.
+     * @param slots
+     *            Variables in the order of the slots of the plan.
+     * @param roots
+     *            Roots of the graph, in the order the plan was compiled in.
+     *            Their registers are the ones the plan was created with.
+     * @param rootCount
+     *            Number of the roots.
+     * @return False if the graph turned out not to match the plan, in which
+     *         case the program is reset and has to be compiled.
+     */
+    public boolean adopt(LayoutPlan plan, Variable[] slots, Value[] roots, int rootCount) {
+        reset();
+        final int size = plan.size;
+        if (mNodes.length < size) {
+            // Capacity stays a power of two, as the instruction table relies
+            // on it.
+            int capacity = mNodes.length;
+            while (capacity < size) {
+                capacity *= 2;
+            }
+            mNodes = new Value[capacity];
+            mRegisters = new int[capacity];
+            mChangeStamps = new int[capacity];
+            mDirty = new boolean[capacity];
+            mDirtyHeap = new int[capacity];
+        }
+        mSharedCode = true;
+        mOwnOps = mOps;
+        mOwnOperands1 = mOperands1;
+        mOwnOperands2 = mOperands2;
+        mOwnExtraOperands = mExtraOperands;
+        mOwnDependentsStart = mDependentsStart;
+        mOwnDependents = mDependents;
+        mOps = plan.ops;
+        mOperands1 = plan.operands1;
+        mOperands2 = plan.operands2;
+        mExtraOperands = plan.extraOperands;
+        mDependentsStart = plan.dependentsStart;
+        mDependents = plan.dependents;
+        mSize = size;
+        mExtraOperandsSize = plan.extraOperands.length;
+        mDependentsSize = size;
+        boolean matches = true;
+        for (int i = 0; i < size && matches; i++) {
+            final int slot = plan.loadSlots[i];
+            if (slot >= 0) {
+                final Variable variable = slots[slot];
+                matches = variable.mCompileStamp != mCompileStamp;
+                mNodes[i] = variable;
+                variable.mRegister = i;
+                markCompiled(variable);
+            }
+        }
+        for (int i = 0; i < rootCount && matches; i++) {
+            matches = markGraphCompiled(roots[i]);
+        }
+        if (!matches || mNodeCount != plan.nodeCount) {
+            reset();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the graph reachable from the value as compiled, without lowering
+     * it.
+     *
+     * @return False if a variable not bound to a slot or a cycle was found.
+     */
+    private boolean markGraphCompiled(Value value) {
+        final int done = mCompileStamp, visiting = -mCompileStamp;
+        if (value.mCompileStamp == done) {
+            return true;
+        }
+        push(value);
+        while (mStackSize > 0) {
+            final int top = mStackSize - 1;
+            final Value node = mStack[top];
+            final int operandIndex = mStackOperands[top];
+            if (operandIndex < node.getOperandCount()) {
+                mStackOperands[top]++;
+                final Value operand = node.getOperand(operandIndex);
+                if (operand.mCompileStamp == visiting) {
+                    clearStack();
+                    return false;
+                } else if (operand.mCompileStamp != done) {
+                    push(operand);
+                }
+            } else if (node.getOpcode() == OP_LOAD && !((Variable) node).isConstant()) {
+                clearStack();
+                return false;
+            } else {
+                markCompiled(node);
+                mStack[top] = null;
+                mStackSize = top;
+            }
+        }
+        return true;
+    }
+
+    private void push(Value value) {
+        if (mStackSize == mStack.length) {
+            final Value[] stack = new Value[mStackSize * 2];
+            System.arraycopy(mStack, 0, stack, 0, mStackSize);
+            mStack = stack;
+            final int[] stackOperands = new int[mStackSize * 2];
+            System.arraycopy(mStackOperands, 0, stackOperands, 0, mStackSize);
+            mStackOperands = stackOperands;
+        }
+        value.mCompileStamp = -mCompileStamp;
+        mStack[mStackSize] = value;
+        mStackOperands[mStackSize] = 0;
+        mStackSize++;
+    }
+
+    private CircularDependencyException createCycleException(Value start) {
+        int first = mStackSize - 1;
+        while (mStack[first] != start) {
+            first--;
+        }
+        final Value[] cycle = new Value[mStackSize - first + 1];
+        System.arraycopy(mStack, first, cycle, 0, mStackSize - first);
+        cycle[cycle.length - 1] = start;
+        clearStack();
+        // Partially compiled program must not be reused.
+        mUpToDate = false;
+        return new CircularDependencyException(cycle);
+    }
+
+    private int lower(Value node) {
+        final byte op = node.getOpcode();
+        switch (op) {
+        case OP_MOVE:
+            // Wrappers do not need instructions of their own.
+            return node.getOperand(0).mRegister;
+        case OP_LOAD:
+            final Variable variable = (Variable) node;
+            if (variable.isConstant()) {
+                return deferConstant(variable.getRawValue());
+            }
+            return emit(OP_LOAD, 0, 0, node);
+        case OP_UNKNOWN:
+            return emitShared(OP_UNKNOWN, 0, 0);
+        case OP_SUM:
+            return lowerSum(node);
+        case OP_MULDIV:
+            return lowerMulDiv(node);
+        default:
+            int operand1 = node.getOperand(0).mRegister;
+            int operand2 = node.getOperand(1).mRegister;
+            if (isDeferredConstant(operand1) && isDeferredConstant(operand2)
+                    && (op != OP_DIVIDE || getDeferredConstant(operand2) != 0)) {
+                // Division by zero is left to solve(), which throws.
+                return deferConstant(calculate(op, getDeferredConstant(operand1), getDeferredConstant(operand2)));
+            }
+            operand1 = materialize(operand1);
+            operand2 = materialize(operand2);
+            if (mOps[operand1] == OP_UNKNOWN || mOps[operand2] == OP_UNKNOWN) {
+                return emitShared(OP_UNKNOWN, 0, 0);
+            } else if (operand1 > operand2 && isCommutative(op)) {
+                final int tmp = operand1;
+                operand1 = operand2;
+                operand2 = tmp;
+            }
+            return emitShared(op, operand1, operand2);
+        }
+    }
+
+    private int lowerSum(Value node) {
+        final int count = node.getOperandCount();
+        // Registers are collected at the end of the extra operands, so they
+        // are already in place if the instruction is emitted.
+        ensureExtraOperandsCapacity(count + 1);
+        final int start = mExtraOperandsSize;
+        int size = 0, constant = 0;
+        for (int i = 0; i < count; i++) {
+            final int register = node.getOperand(i).mRegister;
+            if (isDeferredConstant(register)) {
+                constant += getDeferredConstant(register);
+            } else if (mOps[register] == OP_UNKNOWN) {
+                return register;
+            } else {
+                mExtraOperands[start + size++] = register;
+            }
+        }
+        if (size == 0) {
+            return deferConstant(constant);
+        } else if (constant != 0) {
+            mExtraOperands[start + size++] = materialize(deferConstant(constant));
+        }
+        if (size == 1) {
+            return mExtraOperands[start];
+        } else if (size == 2) {
+            return emitShared(OP_ADD, Math.min(mExtraOperands[start], mExtraOperands[start + 1]),
+                    Math.max(mExtraOperands[start], mExtraOperands[start + 1]));
+        }
+        mExtraOperandsSize += size;
+        return emit(OP_SUM, start, size, null);
+    }
+
+    private int lowerMulDiv(Value node) {
+        final int value = node.getOperand(0).mRegister;
+        final int factor = node.getOperand(1).mRegister;
+        final int denominator = node.getOperand(2).mRegister;
+        if (isDeferredConstant(value) && isDeferredConstant(factor) && isDeferredConstant(denominator)
+                && getDeferredConstant(denominator) != 0) {
+            return deferConstant(calculateMulDiv(getDeferredConstant(value), getDeferredConstant(factor),
+                    getDeferredConstant(denominator)));
+        }
+        ensureExtraOperandsCapacity(3);
+        final int start = mExtraOperandsSize;
+        mExtraOperands[start] = materialize(value);
+        mExtraOperands[start + 1] = materialize(factor);
+        mExtraOperands[start + 2] = materialize(denominator);
+        for (int i = start; i < start + 3; i++) {
+            if (mOps[mExtraOperands[i]] == OP_UNKNOWN) {
+                return mExtraOperands[i];
+            }
+        }
+        mExtraOperandsSize += 3;
+        return emit(OP_MULDIV, start, 3, null);
+    }
+
+    private void ensureExtraOperandsCapacity(int count) {
+        if (mExtraOperandsSize + count > mExtraOperands.length) {
+            final int[] extraOperands = new int[Math.max(mExtraOperands.length * 2, mExtraOperandsSize + count)];
+            System.arraycopy(mExtraOperands, 0, extraOperands, 0, mExtraOperandsSize);
+            mExtraOperands = extraOperands;
+        }
+    }
+
+    // Constants get an instruction only when an operation which cannot be
+    // folded uses them, so folded constants leave no dead instructions
+    // behind. Until then they are referenced with negative registers.
+    private int deferConstant(int value) {
+        if (mDeferredConstantsSize == mDeferredConstants.length) {
+            final int[] deferredConstants = new int[mDeferredConstantsSize * 2];
+            System.arraycopy(mDeferredConstants, 0, deferredConstants, 0, mDeferredConstantsSize);
+            mDeferredConstants = deferredConstants;
+        }
+        mDeferredConstants[mDeferredConstantsSize] = value;
+        return -(++mDeferredConstantsSize);
+    }
+
+    private static boolean isDeferredConstant(int register) {
+        return register < 0;
+    }
+
+    private int getDeferredConstant(int register) {
+        return mDeferredConstants[-register - 1];
+    }
+
+    private int materialize(int register) {
+        return isDeferredConstant(register) ? emitShared(OP_CONSTANT, getDeferredConstant(register), 0) : register;
+    }
+
+    private static boolean isBinary(byte op) {
+        return op >= OP_ADD && op <= OP_MAX;
+    }
+
+    private static boolean isCommutative(byte op) {
+        return op == OP_ADD || op == OP_MULTIPLY || op == OP_MIN || op == OP_MAX;
+    }
+
+    /**
+     * Emits an instruction unless an identical one was already emitted.
+     */
+    private int emitShared(byte op, int operand1, int operand2) {
+        final int mask = mInstructionTable.length - 1;
+        int slot = hash(op, operand1, operand2) & mask;
+        int entry;
+        while ((entry = mInstructionTable[slot]) != 0) {
+            final int register = entry - 1;
+            if (mOps[register] == op && mOperands1[register] == operand1 && mOperands2[register] == operand2) {
+                return register;
+            }
+            slot = (slot + 1) & mask;
+        }
+        final int register = emit(op, operand1, operand2, null);
+        if (mInstructionTable.length < mOps.length * 2) {
+            rehash(mOps.length * 2);
+        } else {
+            mInstructionTable[slot] = register + 1;
+        }
+        return register;
+    }
+
+    private static int hash(byte op, int operand1, int operand2) {
+        int hash = op;
+        hash = hash * 31 + operand1;
+        hash = hash * 31 + operand2;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void rehash(int newLen) {
+        mInstructionTable = new int[newLen];
+        final int mask = newLen - 1;
+        for (int register = 0; register < mSize; register++) {
+            final byte op = mOps[register];
+            if (op != OP_LOAD && op != OP_SUM && op != OP_MULDIV) {
+                int slot = hash(op, mOperands1[register], mOperands2[register]) & mask;
+                while (mInstructionTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                mInstructionTable[slot] = register + 1;
+            }
+        }
+    }
+
+    private int emit(byte op, int operand1, int operand2, Value node) {
+        if (mSize == mOps.length) {
+            grow(mSize * 2);
+        }
+        final int register = mSize++;
+        mOps[register] = op;
+        mOperands1[register] = operand1;
+        mOperands2[register] = operand2;
+        mNodes[register] = node;
+        return register;
+    }
+
+    private void grow(int newLen) {
+        final byte[] ops = new byte[newLen];
+        System.arraycopy(mOps, 0, ops, 0, mSize);
+        mOps = ops;
+        final int[] operands1 = new int[newLen];
+        System.arraycopy(mOperands1, 0, operands1, 0, mSize);
+        mOperands1 = operands1;
+        final int[] operands2 = new int[newLen];
+        System.arraycopy(mOperands2, 0, operands2, 0, mSize);
+        mOperands2 = operands2;
+        final Value[] nodes = new Value[newLen];
+        System.arraycopy(mNodes, 0, nodes, 0, mSize);
+        mNodes = nodes;
+        final int[] registers = new int[newLen];
+        System.arraycopy(mRegisters, 0, registers, 0, mSize);
+        mRegisters = registers;
+        final int[] changeStamps = new int[newLen];
+        System.arraycopy(mChangeStamps, 0, changeStamps, 0, mSize);
+        mChangeStamps = changeStamps;
+        final boolean[] dirty = new boolean[newLen];
+        System.arraycopy(mDirty, 0, dirty, 0, mSize);
+        mDirty = dirty;
+        final int[] dirtyHeap = new int[newLen];
+        System.arraycopy(mDirtyHeap, 0, dirtyHeap, 0, mDirtyHeapSize);
+        mDirtyHeap = dirtyHeap;
+    }
+
+    /**
+     * @return True if the program has to be compiled again or a variable
+     *         changed since the last {@link #solve()}, so registers may not
+     *         hold the current values.
+     */
+    public boolean hasPendingChanges() {
+        return !mUpToDate || mDirtyHeapSize > 0 || mSolvedSize < mSize;
+    }
+
+    /**
+     * Called when a wrapper is pointed to another node.
+     */
+    void onStructureChanged(Value value) {
+        if (value.mCompileStamp == mCompileStamp) {
+            mUpToDate = false;
+        }
+    }
+
+    /**
+     * Forces compilation on the next check of {@link #isUpToDate()}, e.g.
+     * when the nodes of a generation compiled into the program are released
+     * or new roots have to be compiled.
+     */
+    void invalidate() {
+        mUpToDate = false;
+    }
+
+    /**
+     * Called when the value of a variable changes, so its register is
+     * evaluated again by the next {@link #solve()}.
+     */
+    void onVariableChanged(Variable variable) {
+        final int register = variable.mRegister;
+        if (variable.mCompileStamp == mCompileStamp && register < mSolvedSize && mNodes[register] == variable) {
+            markDirty(register);
+        }
+    }
+
+    private void markDirty(int register) {
+        if (mDirty[register]) {
+            return;
+        }
+        mDirty[register] = true;
+        final int[] heap = mDirtyHeap;
+        int index = mDirtyHeapSize++;
+        while (index > 0) {
+            final int parent = (index - 1) >> 1;
+            if (heap[parent] <= register) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = register;
+    }
+
+    private int pollDirty() {
+        final int[] heap = mDirtyHeap;
+        final int ret = heap[0];
+        final int last = heap[--mDirtyHeapSize];
+        final int size = mDirtyHeapSize;
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= last) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = last;
+        mDirty[ret] = false;
+        return ret;
+    }
+
+    private void buildDependents() {
+        final int size = mSize;
+        if (mDependentsStart.length < size + 1) {
+            mDependentsStart = new int[mOps.length + 1];
+        }
+        final int[] start = mDependentsStart;
+        Arrays.fill(start, 0, size + 1, 0);
+        final int[] extraOperands = mExtraOperands;
+        int edges = 0;
+        for (int i = 0; i < size; i++) {
+            final byte op = mOps[i];
+            if (isBinary(op)) {
+                start[mOperands1[i] + 1]++;
+                start[mOperands2[i] + 1]++;
+                edges += 2;
+            } else if (op == OP_SUM || op == OP_MULDIV) {
+                for (int j = mOperands1[i], end = j + mOperands2[i]; j < end; j++) {
+                    start[extraOperands[j] + 1]++;
+                    edges++;
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            start[i + 1] += start[i];
+        }
+        if (mDependents.length < edges) {
+            mDependents = new int[edges];
+        }
+        // Fill using the start offsets as cursors, then shift them back.
+        for (int i = 0; i < size; i++) {
+            final byte op = mOps[i];
+            if (isBinary(op)) {
+                mDependents[start[mOperands1[i]]++] = i;
+                mDependents[start[mOperands2[i]]++] = i;
+            } else if (op == OP_SUM || op == OP_MULDIV) {
+                for (int j = mOperands1[i], end = j + mOperands2[i]; j < end; j++) {
+                    mDependents[start[extraOperands[j]]++] = i;
+                }
+            }
+        }
+        for (int i = size; i > 0; i--) {
+            start[i] = start[i - 1];
+        }
+        start[0] = 0;
+        mDependentsSize = size;
+    }
+
+    /**
+     * Brings the registers up to date. Instructions compiled since the last
+     * call are evaluated in full, the rest only if they depend on a
+     * {@link Variable} which value changed in the meantime. Variables are
+     * read at this point, so the program does not have to be compiled again
+     * as long as only their values change.
+     *
+     * @throws ArithmeticException
+     *             on division by zero, like {@link Value#getValue()}.
+     */
+    public void solve() {
+        mSolveCount++;
+        final int[] registers = mRegisters, changeStamps = mChangeStamps;
+        if (mDirtyHeapSize > 0) {
+            if (mDependentsSize != mSize) {
+                buildDependents();
+            }
+            final int[] dependentsStart = mDependentsStart, dependents = mDependents;
+            final int solvedSize = mSolvedSize;
+            while (mDirtyHeapSize > 0) {
+                final int register = pollDirty();
+                final int value = evaluate(register);
+                if (value != registers[register]) {
+                    registers[register] = value;
+                    changeStamps[register] = mSolveCount;
+                    for (int i = dependentsStart[register], end = dependentsStart[register + 1]; i < end; i++) {
+                        // Instructions not solved yet are evaluated below.
+                        if (dependents[i] < solvedSize) {
+                            markDirty(dependents[i]);
+                        }
+                    }
+                }
+            }
+        }
+        final int size = mSize;
+        for (int i = mSolvedSize; i < size; i++) {
+            registers[i] = evaluate(i);
+            changeStamps[i] = mSolveCount;
+        }
+        mSolvedSize = size;
+    }
+
+    private int evaluate(int register) {
+        final byte op = mOps[register];
+        if (op == OP_LOAD) {
+            return ((Variable) mNodes[register]).getRawValue();
+        } else if (op == OP_CONSTANT) {
+            return mOperands1[register];
+        } else if (op == OP_UNKNOWN) {
+            return UNKNOWN;
+        } else if (op == OP_SUM) {
+            int sum = 0;
+            for (int i = mOperands1[register], end = i + mOperands2[register]; i < end; i++) {
+                final int value = mRegisters[mExtraOperands[i]];
+                if (value == UNKNOWN) {
+                    return UNKNOWN;
+                }
+                sum += value;
+            }
+            return sum;
+        } else if (op == OP_MULDIV) {
+            final int start = mOperands1[register];
+            final int value = mRegisters[mExtraOperands[start]], factor = mRegisters[mExtraOperands[start + 1]],
+                    denominator = mRegisters[mExtraOperands[start + 2]];
+            return (value == UNKNOWN || factor == UNKNOWN || denominator == UNKNOWN) ? UNKNOWN
+                    : calculateMulDiv(value, factor, denominator);
+        }
+        final int v1 = mRegisters[mOperands1[register]], v2 = mRegisters[mOperands2[register]];
+        return (v1 == UNKNOWN || v2 == UNKNOWN) ? UNKNOWN : calculate(op, v1, v2);
+    }
+
+    private static int calculate(byte op, int v1, int v2) {
+        switch (op) {
+        case OP_ADD:
+            return v1 + v2;
+        case OP_SUBTRACT:
+            return v1 - v2;
+        case OP_MULTIPLY:
+            return v1 * v2;
+        case OP_DIVIDE:
+            return v1 / v2;
+        case OP_MIN:
+            return Math.min(v1, v2);
+        case OP_MAX:
+            return Math.max(v1, v2);
+        default:
+            throw new IllegalArgumentException("Unknown opcode: " + op);
+        }
+    }
+
+    static int calculateMulDiv(int value, int factor, int denominator) {
+        return (int) ((long) value * factor / denominator);
+    }
+
+    /**
+     * @param register
+     *            Register returned by {@link #compile(Value)}.
+     * @return True if the value of the register was calculated by the last
+     *         {@link #solve()}.
+     */
+    public boolean isKnown(int register) {
+        return mRegisters[register] != UNKNOWN;
+    }
+
+    /**
+     * @param register
+     *            Register returned by {@link #compile(Value)}.
+     * @return Value calculated by the last {@link #solve()}.
+     */
+    public int getValue(int register) {
+        final int value = mRegisters[register];
+        if (value == UNKNOWN) {
+            throw new IllegalStateException("Exact value not known");
+        }
+        return value;
+    }
+
+    /**
+     * Tells whether the value of the register is derived from the given
+     * variable, whatever values the variables have. The analysis is done
+     * once per compiled program and variable, so it can be used to skip
+     * registers which would be invalidated by the variable before solving.
+     *
+     * @param register
+     *            Register returned by {@link #compile(Value)}.
+     * @param variable
+     *            Variable compiled into the program.
+     * @return True if the register depends on the variable.
+     */
+    public boolean dependsOn(int register, Variable variable) {
+        if (variable != mSource || mSourceSize != mSize) {
+            findDependents(variable);
+        }
+        return mDependsOnSource[register];
+    }
+
+    private void findDependents(Variable variable) {
+        final int size = mSize;
+        if (mDependsOnSource.length < size) {
+            mDependsOnSource = new boolean[mOps.length];
+        }
+        final boolean[] dependent = mDependsOnSource;
+        // Instructions are in topological order, so a single pass over them
+        // propagates the dependency.
+        for (int i = 0; i < size; i++) {
+            final byte op = mOps[i];
+            if (op == OP_LOAD) {
+                dependent[i] = mNodes[i] == variable;
+            } else if (isBinary(op)) {
+                dependent[i] = dependent[mOperands1[i]] || dependent[mOperands2[i]];
+            } else if (op == OP_SUM || op == OP_MULDIV) {
+                boolean any = false;
+                for (int j = mOperands1[i], end = j + mOperands2[i]; j < end && !any; j++) {
+                    any = dependent[mExtraOperands[j]];
+                }
+                dependent[i] = any;
+            } else {
+                dependent[i] = false;
+            }
+        }
+        mSource = variable;
+        mSourceSize = size;
+    }
+
+    /**
+     * @return Number of {@link #solve()} calls so far, to be passed to
+     *         {@link #hasChangedSince(int, int)}.
+     */
+    public int getSolveCount() {
+        return mSolveCount;
+    }
+
+    /**
+     * @param register
+     *            Register returned by {@link #compile(Value)}.
+     * @param solveCount
+     *            Value returned by {@link #getSolveCount()}.
+     * @return True if the value of the register changed in any
+     *         {@link #solve()} after the given one.
+     */
+    public boolean hasChangedSince(int register, int solveCount) {
+        return mChangeStamps[register] > solveCount;
+    }
+
+    /**
+     * @return Number of instructions in the program.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Number of distinct graph nodes compiled into the program,
+     *         before wrappers were elided and identical nodes were merged.
+     */
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Thrown when the compiled graph contains a cycle.
+     */
+    public static class CircularDependencyException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+        private final Value[] mCycle;
+
+        CircularDependencyException(Value[] cycle) {
+            super("Circular dependency");
+            mCycle = cycle;
+        }
+
+        /**
+         * @return Nodes forming the cycle, the first node is repeated at the
+         *         end.
+         */
+        public Value[] getCycle() {
+            return mCycle;
+        }
+    }
+}
@@ -1,32 +1,81 @@
 package org.coderoller.springlayout;
 
+import java.lang.reflect.Array;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+/**
+ * Identity set keeping its elements in insertion order. Elements are looked up
+ * in an open-addressing hash table of indices into the element array, so
+ * {@link #add(Object)}, {@link #contains(Object)} and {@link #remove(Object)}
+ * take constant time on average. Removing an element moves the last one into
+ * its place. Clearing the set keeps its arrays, so a set which is reused does
+ * not allocate once it has grown to its working size.
+ */
 public class SimpleIdentitySet<T> implements Set<T> {
     private Object[] mContent = new Object[16];
+    // Open-addressing table with linear probing, holding index + 1 of the
+    // element in mContent or 0 for an empty slot. It is kept at most half
+    // full.
+    private int[] mTable = new int[32];
     private int mSize = 0;
+    private int mModCount = 0;
+
+    private static int hash(Object object, int mask) {
+        final int h = System.identityHashCode(object);
+        return (h ^ (h >>> 16)) & mask;
+    }
 
     private void resize(int newLen) {
         if (mContent.length < newLen) {
             Object[] oldContent = mContent;
-            mContent = new ViewConstraints[newLen];
-            System.arraycopy(oldContent, 0, mContent, 0, oldContent.length);
+            mContent = new Object[newLen];
+            System.arraycopy(oldContent, 0, mContent, 0, mSize);
+            mTable = new int[newLen * 2];
+            final int mask = mTable.length - 1;
+            for (int i = 0; i < mSize; i++) {
+                int slot = hash(mContent[i], mask);
+                while (mTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                mTable[slot] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * @return Slot of the given object in the hash table or of the empty slot
+     *         it would be put in.
+     */
+    private int findSlot(Object object) {
+        final int mask = mTable.length - 1;
+        int slot = hash(object, mask);
+        int index;
+        while ((index = mTable[slot]) != 0 && mContent[index - 1] != object) {
+            slot = (slot + 1) & mask;
         }
+        return slot;
     }
 
     @Override
     public boolean add(T object) {
-        if (!contains(object)) {
-            if (mSize >= mContent.length) {
-                resize(mContent.length * 2);
-            }
-            mContent[mSize] = object;
-            mSize++;
-            return true;
+        int slot = findSlot(object);
+        if (mTable[slot] != 0) {
+            return false;
+        }
+        if (mSize >= mContent.length) {
+            resize(mContent.length * 2);
+            slot = findSlot(object);
         }
-        return false;
+        mContent[mSize] = object;
+        mSize++;
+        mTable[slot] = mSize;
+        mModCount++;
+        return true;
     }
 
     @SuppressWarnings("unchecked")
@@ -45,20 +94,17 @@ public class SimpleIdentitySet<T> implements Set<T> {
 
     @Override
     public void clear() {
-        for (int i = 0; i < mSize; i++) {
-            mContent[i] = null;
+        if (mSize > 0) {
+            Arrays.fill(mContent, 0, mSize, null);
+            Arrays.fill(mTable, 0);
+            mSize = 0;
+            mModCount++;
         }
-        mSize = 0;
     }
 
     @Override
     public boolean contains(Object object) {
-        for (int i = 0; i < mSize; i++) {
-            if (mContent[i] == object) {
-                return true;
-            }
-        }
-        return false;
+        return mTable[findSlot(object)] != 0;
     }
 
     @Override
@@ -78,22 +124,101 @@ public class SimpleIdentitySet<T> implements Set<T> {
 
     @Override
     public Iterator<T> iterator() {
-        throw new UnsupportedOperationException();
+        return new Iterator<T>() {
+            private int mNext = 0;
+            private int mLast = -1;
+            private int mExpectedModCount = mModCount;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mSize;
+            }
+
+            @Override
+            public T next() {
+                if (mExpectedModCount != mModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (mNext >= mSize) {
+                    throw new NoSuchElementException();
+                }
+                mLast = mNext++;
+                return get(mLast);
+            }
+
+            @Override
+            public void remove() {
+                if (mLast < 0) {
+                    throw new IllegalStateException();
+                }
+                if (mExpectedModCount != mModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(findSlot(mContent[mLast]));
+                // The last element was moved into the removed one's place.
+                mNext = mLast;
+                mLast = -1;
+                mExpectedModCount = mModCount;
+            }
+        };
     }
 
     @Override
     public boolean remove(Object object) {
-        throw new UnsupportedOperationException();
+        final int slot = findSlot(object);
+        if (mTable[slot] == 0) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    private void removeAt(int slot) {
+        final int index = mTable[slot] - 1;
+        final int last = mSize - 1;
+        if (index != last) {
+            mTable[findSlot(mContent[last])] = index + 1;
+            mContent[index] = mContent[last];
+        }
+        mContent[last] = null;
+        mSize--;
+        mModCount++;
+
+        // Shift back the entries following the removed one in its probe
+        // sequence, so lookups do not stop at the emptied slot.
+        final int mask = mTable.length - 1;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (mTable[next] != 0) {
+            final int home = hash(mContent[mTable[next] - 1], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mTable[hole] = mTable[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mTable[hole] = 0;
     }
 
     @Override
-    public boolean removeAll(Collection<?> arg0) {
-        throw new UnsupportedOperationException();
+    public boolean removeAll(Collection<?> collection) {
+        boolean changed = false;
+        for (Object object : collection) {
+            changed |= remove(object);
+        }
+        return changed;
     }
 
     @Override
-    public boolean retainAll(Collection<?> arg0) {
-        throw new UnsupportedOperationException();
+    public boolean retainAll(Collection<?> collection) {
+        boolean changed = false;
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (!collection.contains(mContent[i])) {
+                remove(mContent[i]);
+                changed = true;
+            }
+        }
+        return changed;
     }
 
     @Override
@@ -103,11 +228,21 @@ public class SimpleIdentitySet<T> implements Set<T> {
 
     @Override
     public Object[] toArray() {
-        return mContent;
+        final Object[] array = new Object[mSize];
+        System.arraycopy(mContent, 0, array, 0, mSize);
+        return array;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <U> U[] toArray(U[] array) {
-        throw new UnsupportedOperationException();
+        if (array.length < mSize) {
+            array = (U[]) Array.newInstance(array.getClass().getComponentType(), mSize);
+        }
+        System.arraycopy(mContent, 0, array, 0, mSize);
+        if (array.length > mSize) {
+            array[mSize] = null;
+        }
+        return array;
     }
 }
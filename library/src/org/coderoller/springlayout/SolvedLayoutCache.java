@@ -0,0 +1,120 @@
+package org.coderoller.springlayout;
+
+/**
+ * Small least recently used cache of solved layouts. An entry maps the inputs
+ * of a measure pass, written by the caller into the array returned by
+ * {@link #getKey(int)}, to the bounds of the children and the measured size
+ * of the layout. Entries keep their arrays when they are replaced, so the
+ * cache does not allocate once it has grown to its working size.
+ */
+final class SolvedLayoutCache {
+    static final int DEFAULT_CAPACITY = 4;
+
+    private final int[][] mKeys;
+    private final int[] mKeyLengths;
+    private final int[][] mBounds;
+    private final int[] mWidths, mHeights;
+    // Stamp of the last access of each entry, 0 for an empty entry.
+    private final int[] mAccessStamps;
+    private int mAccessCount;
+    private int[] mKey = new int[64];
+
+    SolvedLayoutCache(int capacity) {
+        mKeys = new int[capacity][];
+        mKeyLengths = new int[capacity];
+        mBounds = new int[capacity][];
+        mWidths = new int[capacity];
+        mHeights = new int[capacity];
+        mAccessStamps = new int[capacity];
+    }
+
+    /**
+     * @return Array the key of the next {@link #find(int)} or
+     *         {@link #put(int, int)} call is written into, holding at least
+     *         the given number of values.
+     */
+    int[] getKey(int length) {
+        if (mKey.length < length) {
+            mKey = new int[Math.max(length, mKey.length * 2)];
+        }
+        return mKey;
+    }
+
+    /**
+     * @return Entry stored under the key written into {@link #getKey(int)}
+     *         or -1 if there is none.
+     */
+    int find(int keyLength) {
+        final int[] key = mKey;
+        for (int entry = 0; entry < mKeys.length; entry++) {
+            if (mAccessStamps[entry] != 0 && mKeyLengths[entry] == keyLength && equals(mKeys[entry], key, keyLength)) {
+                mAccessStamps[entry] = ++mAccessCount;
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equals(int[] a, int[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores the key written into {@link #getKey(int)} in place of the least
+     * recently used entry.
+     *
+     * @param boundsLength
+     *            Number of values the bounds of the entry have to hold.
+     * @return The entry, its bounds and size are filled in by the caller.
+     */
+    int put(int keyLength, int boundsLength) {
+        int entry = 0;
+        for (int i = 1; i < mKeys.length; i++) {
+            if (mAccessStamps[i] < mAccessStamps[entry]) {
+                entry = i;
+            }
+        }
+        if (mKeys[entry] == null || mKeys[entry].length < keyLength) {
+            mKeys[entry] = new int[mKey.length];
+        }
+        System.arraycopy(mKey, 0, mKeys[entry], 0, keyLength);
+        mKeyLengths[entry] = keyLength;
+        if (mBounds[entry] == null || mBounds[entry].length < boundsLength) {
+            mBounds[entry] = new int[boundsLength];
+        }
+        mAccessStamps[entry] = ++mAccessCount;
+        return entry;
+    }
+
+    int[] getBounds(int entry) {
+        return mBounds[entry];
+    }
+
+    int getWidth(int entry) {
+        return mWidths[entry];
+    }
+
+    int getHeight(int entry) {
+        return mHeights[entry];
+    }
+
+    void setSize(int entry, int width, int height) {
+        mWidths[entry] = width;
+        mHeights[entry] = height;
+    }
+
+    /**
+     * Drops all entries, e.g. when the constraints change.
+     */
+    void clear() {
+        for (int entry = 0; entry < mAccessStamps.length; entry++) {
+            mAccessStamps[entry] = 0;
+        }
+        mAccessCount = 0;
+    }
+}
@@ -1,20 +1,26 @@
 package org.coderoller.springlayout;
 
-import java.util.Stack;
+import java.util.Arrays;
 
 import org.coderoller.springlayout.LayoutMath.Value;
 import org.coderoller.springlayout.LayoutMath.ValueWrapper;
+import org.coderoller.springlayout.LayoutMath.Variable;
+import org.coderoller.springlayout.LayoutProgram.CircularDependencyException;
 
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.os.Build;
 import android.util.AttributeSet;
-import android.util.SparseIntArray;
 import android.view.View;
 import android.view.ViewDebug;
 import android.view.ViewGroup;
 
 public class SpringLayout extends ViewGroup {
-    private static int RELATIVE_SIZE_DENOMINATOR = 100;
+    static final int RELATIVE_SIZE_DENOMINATOR = 100;
 
     public static final int PARENT = -2;
     public static final int TRUE = -1;
@@ -114,19 +120,90 @@ public class SpringLayout extends ViewGroup {
     private static final String[] ANCHOR_NAMES = new String[] { "top", "bottom", "left", "right" };
 
     private ViewConstraints mRootConstraints;
-    private final SparseIntArray mIdToViewConstraints = new SparseIntArray();
+    private final IdIndexMap mIdToViewConstraints = new IdIndexMap();
+    // Scratch copy of the relations of a child while they are normalized.
+    private final int[] mNormalizedRelations = new int[VERB_COUNT];
     private ViewConstraints[] mViewConstraints;
-    private final Stack<ViewConstraints> mSpringMetrics = new Stack<ViewConstraints>();
+    // Number of children the constraints were last updated for.
+    private int mViewConstraintsCount;
+    // Buffer the constraints are merged into by incremental updates, swapped
+    // with mViewConstraints.
+    private ViewConstraints[] mSpareViewConstraints;
+    // Constraints of removed children, reused for the added ones.
+    private ViewConstraints[] mFreeViewConstraints = new ViewConstraints[8];
+    private int mFreeViewConstraintsCount;
+    private ViewConstraints[] mSpringMetrics = new ViewConstraints[8];
+    private int mSpringMetricsCount;
     private final SimpleIdentitySet<ViewConstraints> mHorizontalChains = new SimpleIdentitySet<ViewConstraints>();
     private final SimpleIdentitySet<ViewConstraints> mVerticalChains = new SimpleIdentitySet<ViewConstraints>();
-
-    private LayoutMath mLayoutMath = new LayoutMath();
+    // Sizes of the non-spring elements of the chain being built.
+    private Value[] mChainOperands = new Value[8];
+
+    private static boolean sSharedLayoutMath;
+
+    private final LayoutMath mLayoutMath = sSharedLayoutMath ? LayoutMath.getThreadInstance() : new LayoutMath();
+    // Usage of mLayoutMath attributed to this layout.
+    private final LayoutMath.Stats mInstanceStats = new LayoutMath.Stats();
+    // Nodes built for the current hierarchy, released at once when it is
+    // rebuilt.
+    private final LayoutMath.Generation mGeneration = mLayoutMath.newGeneration();
+    // Horizontal and vertical constraints never share nodes, so they are
+    // compiled and solved separately.
+    private final LayoutProgram mProgramX = new LayoutProgram(mLayoutMath);
+    private final LayoutProgram mProgramY = new LayoutProgram(mLayoutMath);
+    private int mRootRightRegister, mRootBottomRegister;
+    // The constraints were built by a full rebuild, so layouts with the same
+    // fingerprint share the compiled programs.
+    private boolean mSharablePlan;
+    private int[] mPlanKey = new int[0];
+    private Value[] mPlanRoots = new Value[0];
+    private Variable[] mPlanSlots = new Variable[0];
+    private int[] mPlanRegisters = new int[0];
+    private Variable mLayoutWidth, mLayoutHeight;
 
     private boolean mDirtyHierarchy = true;
     private boolean mDirtySize = true;
+    // Set by requestLayout(), which does not tell whether the request came
+    // from a child or from the layout itself.
+    private boolean mLayoutRequestPending;
+    // Set when a child measured in the current pass turned out to have new
+    // LayoutParams, so the pass starts over with the child wired again.
+    private boolean mReplacedLayoutParams;
+    private int mLastWidthMeasureSpec, mLastHeightMeasureSpec;
+    // Layouts solved for recently seen measure specs and child sizes, e.g.
+    // when a parent measures the layout twice with different specs.
+    private final SolvedLayoutCache mSolvedLayouts = new SolvedLayoutCache(SolvedLayoutCache.DEFAULT_CAPACITY);
+    // Entry of mSolvedLayouts the children bounds were taken from, in which
+    // case the registers of the programs do not hold the current solution,
+    // or -1.
+    private int mRestoredLayout = -1;
+    private OnChildBoundsChangeListener mOnChildBoundsChangeListener;
+    // Children moved by the current layout pass and their previous bounds.
+    private View[] mMovedChildren = new View[8];
+    private int[] mMovedBounds = new int[8 * 4];
+    // Children were added or removed since the last measure pass.
+    private boolean mChildrenChanged;
+    // Nesting level of beginConstraintUpdate() calls.
+    private int mConstraintUpdateDepth;
+    private boolean mLayoutRequestedInUpdate;
+    // Children which relations changed since the last measure pass,
+    // recorded by their LayoutParams.
+    private final SimpleIdentitySet<View> mDirtyChildren = new SimpleIdentitySet<View>();
+    // Ids of anchors not found among the children. Adding a view with such
+    // id changes relations of other views, so the hierarchy is rebuilt.
+    private final IdIndexMap mMissingAnchors = new IdIndexMap();
+    private boolean mHasSprings, mHasDuplicateIds;
+    // Number of children removed without rebuilding the hierarchy, their
+    // nodes stay in the generation until it is rebuilt.
+    private int mRemovedSinceRebuild;
 
     private int mMinWidth = 0, mMinHeight = 0;
 
+    private static final int DEFAULT_RETAINED_POOL_SIZE = 64;
+    private int mRetainedPoolSize = DEFAULT_RETAINED_POOL_SIZE;
+    // ComponentCallbacks2 is not available before API level 14.
+    private ComponentCallbacks mTrimMemoryCallbacks;
+
     public SpringLayout(Context context) {
         super(context);
     }
@@ -148,65 +225,268 @@ public class SpringLayout extends ViewGroup {
         a.recycle();
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH && mTrimMemoryCallbacks == null) {
+            mTrimMemoryCallbacks = new TrimMemoryCallbacks();
+            getContext().getApplicationContext().registerComponentCallbacks(mTrimMemoryCallbacks);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mTrimMemoryCallbacks != null) {
+            getContext().getApplicationContext().unregisterComponentCallbacks(mTrimMemoryCallbacks);
+            mTrimMemoryCallbacks = null;
+        }
+        if (mLayoutMath == LayoutMath.getThreadInstance()) {
+            // Return the nodes to the shared pools, so other layouts can use
+            // them while this one is detached.
+            final LayoutMath.Stats previousStats = mLayoutMath.setClientStats(mInstanceStats);
+            try {
+                releaseViewMetrics();
+                mGeneration.recycle();
+            } finally {
+                mLayoutMath.setClientStats(previousStats);
+            }
+            mDirtyHierarchy = true;
+            mDirtySize = true;
+        }
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Makes all layouts created afterwards on the same thread share one
+     * {@link LayoutMath}, so nodes released by one layout can be reused by
+     * the others instead of each layout keeping its own pools. Shared nodes
+     * are released when a layout is detached from its window.
+     *
+     * @param enabled
+     *            True to share the LayoutMath, false by default.
+     */
+    public static void setSharedLayoutMathEnabled(boolean enabled) {
+        sSharedLayoutMath = enabled;
+    }
+
+    /**
+     * @return Snapshot of the node counters attributed to this layout: nodes
+     *         it took from and returned to its LayoutMath, pool hits, misses
+     *         and its peak usage. Unlike {@link #getLayoutMathStats()} it does
+     *         not include other layouts sharing the LayoutMath.
+     */
+    public LayoutMath.Stats getInstanceLayoutMathStats() {
+        final LayoutMath.Stats stats = new LayoutMath.Stats();
+        mInstanceStats.copyTo(stats);
+        return stats;
+    }
+
+    /**
+     * Fills the constraint node pools, so the first measure pass does not
+     * have to allocate them.
+     *
+     * @param hint
+     *            Counters returned by {@link #getLayoutMathStats()} in a
+     *            previous run of the same layout.
+     */
+    public void prewarm(LayoutMath.Stats hint) {
+        mLayoutMath.prewarm(hint);
+    }
+
+    /**
+     * @param retainedPoolSize
+     *            Number of pooled constraint nodes of each type kept when the
+     *            system asks to trim memory while the UI is still in use.
+     */
+    public void setRetainedPoolSize(int retainedPoolSize) {
+        mRetainedPoolSize = retainedPoolSize;
+    }
+
+    /**
+     * Drops pooled constraint nodes depending on memory pressure. Called
+     * automatically on API level 14 and above.
+     *
+     * @param level
+     *            One of the ComponentCallbacks2.TRIM_MEMORY_* levels.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            mLayoutMath.trim(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mLayoutMath.trim(mRetainedPoolSize);
+        }
+    }
+
+    private class TrimMemoryCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
     @Override
     public void addView(View child, int index, ViewGroup.LayoutParams params) {
-        mDirtyHierarchy = true;
+        mChildrenChanged = true;
         super.addView(child, index, params);
+        ((LayoutParams) child.getLayoutParams()).attach(this, child);
+    }
+
+    @Override
+    protected boolean addViewInLayout(View child, int index, ViewGroup.LayoutParams params, boolean preventRequestLayout) {
+        mChildrenChanged = true;
+        final boolean added = super.addViewInLayout(child, index, params, preventRequestLayout);
+        ((LayoutParams) child.getLayoutParams()).attach(this, child);
+        return added;
     }
 
     @Override
     public void removeView(View view) {
-        mDirtyHierarchy = true;
+        mChildrenChanged = true;
         super.removeView(view);
     }
 
     @Override
     public void removeViewAt(int index) {
-        mDirtyHierarchy = true;
+        mChildrenChanged = true;
         super.removeViewAt(index);
     }
 
     @Override
     public void removeViews(int start, int count) {
-        mDirtyHierarchy = true;
+        mChildrenChanged = true;
         super.removeViews(start, count);
     }
 
     @Override
     public void requestLayout() {
+        if (mConstraintUpdateDepth > 0) {
+            mLayoutRequestedInUpdate = true;
+            return;
+        }
         super.requestLayout();
-        mDirtySize = true;
+        mLayoutRequestPending = true;
+    }
 
-        if (!mDirtyHierarchy) {
-            final int count = getChildCount();
-            for (int i = 0; i < count; i++) {
-                final LayoutParams params = ((LayoutParams) getChildAt(i).getLayoutParams());
-                if (params.dirty) {
-                    mDirtyHierarchy = true;
-                    params.dirty = false;
-                }
+    /**
+     * Starts a batch of constraint edits, e.g. {@link LayoutParams#addRelation}
+     * or weight changes on many children. Until the matching
+     * {@link #endConstraintUpdate()} layout requests are deferred and
+     * measure passes keep using the current relations, unless children are
+     * added or removed. Calls can be nested.
+     */
+    public void beginConstraintUpdate() {
+        mConstraintUpdateDepth++;
+    }
+
+    /**
+     * Ends a batch of constraint edits started with
+     * {@link #beginConstraintUpdate()}. When the outermost batch ends, all
+     * edits are applied at once and a single layout is requested.
+     * 
+     * @throws IllegalStateException
+     *             If the relations of the changed children conflict, so the
+     *             error is reported to the code which made the edits. Edits
+     *             involving springs rebuild the hierarchy and are validated
+     *             by the next measure pass instead.
+     */
+    public void endConstraintUpdate() {
+        if (mConstraintUpdateDepth == 0) {
+            throw new IllegalStateException("endConstraintUpdate() called without beginConstraintUpdate()");
+        }
+        if (--mConstraintUpdateDepth > 0) {
+            return;
+        }
+        boolean changed = mLayoutRequestedInUpdate || mDirtyHierarchy;
+        mLayoutRequestedInUpdate = false;
+        final LayoutMath.Stats previousStats = mLayoutMath.setClientStats(mInstanceStats);
+        try {
+            changed |= applyChildrenChanges();
+        } finally {
+            mLayoutMath.setClientStats(previousStats);
+            if (changed) {
+                mDirtySize = true;
+                requestLayout();
             }
         }
     }
 
+    /**
+     * Called by the LayoutParams of a child when its relations change.
+     */
+    void onChildLayoutParamsChanged(View child) {
+        mDirtyChildren.add(child);
+    }
+
     private void resizeViewConstraintsArray(int newLen) {
         if (mViewConstraints.length < newLen) {
             ViewConstraints[] oldConstraints = mViewConstraints;
-            mViewConstraints = new ViewConstraints[newLen];
+            mViewConstraints = new ViewConstraints[Math.max(newLen, oldConstraints.length * 2)];
             System.arraycopy(oldConstraints, 0, mViewConstraints, 0, oldConstraints.length);
         }
     }
 
-    private void createViewMetrics(Stack<ViewConstraints> springMetrics) {
-        springMetrics.clear();
-        mIdToViewConstraints.clear();
+    private ViewConstraints obtainViewConstraints(View view) {
+        if (mFreeViewConstraintsCount > 0) {
+            final ViewConstraints viewConstraints = mFreeViewConstraints[--mFreeViewConstraintsCount];
+            mFreeViewConstraints[mFreeViewConstraintsCount] = null;
+            viewConstraints.reset(view);
+            return viewConstraints;
+        }
+        return new ViewConstraints(view, mLayoutMath);
+    }
+
+    private void recycleViewConstraints(ViewConstraints viewConstraints) {
+        viewConstraints.clearRelations();
+        viewConstraints.release();
+        if (mFreeViewConstraintsCount == mFreeViewConstraints.length) {
+            final ViewConstraints[] freeViewConstraints = new ViewConstraints[mFreeViewConstraintsCount * 2];
+            System.arraycopy(mFreeViewConstraints, 0, freeViewConstraints, 0, mFreeViewConstraintsCount);
+            mFreeViewConstraints = freeViewConstraints;
+        }
+        mFreeViewConstraints[mFreeViewConstraintsCount++] = viewConstraints;
+    }
+
+    private void addSpringMetrics(ViewConstraints viewConstraints) {
+        if (mSpringMetricsCount == mSpringMetrics.length) {
+            final ViewConstraints[] springMetrics = new ViewConstraints[mSpringMetricsCount * 2];
+            System.arraycopy(mSpringMetrics, 0, springMetrics, 0, mSpringMetricsCount);
+            mSpringMetrics = springMetrics;
+        }
+        mSpringMetrics[mSpringMetricsCount++] = viewConstraints;
+    }
 
+    private void releaseViewMetrics() {
         if (mRootConstraints != null) {
+            // Only the nodes built while measuring are refcounted, the rest
+            // belongs to the generation.
             mRootConstraints.release();
             for (int i = 0; i < mViewConstraints.length; i++) {
-                mViewConstraints[i].release();
+                if (mViewConstraints[i] != null) {
+                    mViewConstraints[i].release();
+                }
             }
+            mGeneration.release();
+        }
+    }
 
+    private void createViewMetrics() {
+        mSpringMetricsCount = 0;
+        mIdToViewConstraints.clear();
+        mMissingAnchors.clear();
+        mHasDuplicateIds = false;
+        mRemovedSinceRebuild = 0;
+
+        if (mRootConstraints != null) {
+            releaseViewMetrics();
             mRootConstraints.reset(this);
             resizeViewConstraintsArray(getChildCount());
         } else {
@@ -214,16 +494,23 @@ public class SpringLayout extends ViewGroup {
             mViewConstraints = new ViewConstraints[getChildCount()];
         }
 
-        mRootConstraints.left.setValueObject(mLayoutMath.variable(0));
-        mRootConstraints.top.setValueObject(mLayoutMath.variable(0));
+        mRootConstraints.left.setValueObject(mLayoutMath.constant(0));
+        mRootConstraints.top.setValueObject(mLayoutMath.constant(0));
+        mLayoutWidth = mLayoutMath.variable();
+        mLayoutHeight = mLayoutMath.variable();
+        mRootConstraints.right.setValueObject(mLayoutWidth);
+        mRootConstraints.bottom.setValueObject(mLayoutHeight);
 
         final int count = getChildCount();
 
         for (int i = 0; i < count; i++) {
             final View v = getChildAt(i);
-            mIdToViewConstraints.append(v.getId(), i);
+            if (mIdToViewConstraints.containsKey(v.getId())) {
+                mHasDuplicateIds = true;
+            }
+            mIdToViewConstraints.put(v.getId(), i);
             if (mViewConstraints[i] == null) {
-                mViewConstraints[i] = new ViewConstraints(v, mLayoutMath);
+                mViewConstraints[i] = obtainViewConstraints(v);
             } else {
                 mViewConstraints[i].reset(v);
             }
@@ -233,6 +520,9 @@ public class SpringLayout extends ViewGroup {
             final ViewConstraints viewConstraints = mViewConstraints[i];
             final LayoutParams layoutParams = (LayoutParams) viewConstraints.getView().getLayoutParams();
 
+            layoutParams.attach(this, viewConstraints.getView());
+            layoutParams.dirty = false;
+
             if (layoutParams.getWidthWeight() > 0) {
                 viewConstraints.markAsHorizontalSpring();
             }
@@ -241,99 +531,248 @@ public class SpringLayout extends ViewGroup {
                 viewConstraints.markAsVerticalSpring();
             }
 
-            int[] childRules = layoutParams.getRelations();
-            for (int relation : VALID_RELATIONS) {
-                final ViewConstraints metrics = getViewMetrics(childRules[relation]);
-                if (metrics != null) {
-                    metrics.updateRelation(viewConstraints, relation);
+            applyRelations(viewConstraints);
+            if (viewConstraints.isHorizontalSpring() || viewConstraints.isVerticalSpring()) {
+                addSpringMetrics(viewConstraints);
+            }
+        }
+        mViewConstraintsCount = count;
+        mHasSprings = mSpringMetricsCount > 0;
+    }
+
+    private void applyRelations(ViewConstraints viewConstraints) {
+        final LayoutParams layoutParams = (LayoutParams) viewConstraints.getView().getLayoutParams();
+        final int[] relationVerbs = layoutParams.mRelationVerbs;
+        final int[] relationAnchors = layoutParams.mRelationAnchors;
+        for (int i = 0; i < layoutParams.mRelationCount; i++) {
+            final ViewConstraints metrics = getViewMetrics(relationAnchors[i]);
+            if (metrics != null) {
+                metrics.updateRelation(viewConstraints, relationVerbs[i]);
+            } else {
+                mMissingAnchors.put(relationAnchors[i], 0);
+            }
+        }
+    }
+
+    /**
+     * Wires added and changed children into the existing constraints and
+     * detaches the removed ones, without touching the other children.
+     *
+     * @return False if the change cannot be applied incrementally and the
+     *         hierarchy has to be rebuilt. Constraints are not modified in
+     *         such case.
+     */
+    private boolean updateViewMetrics() {
+        final int count = getChildCount();
+        final int oldCount = mViewConstraintsCount;
+        if (mRootConstraints == null || mHasSprings || mHasDuplicateIds) {
+            return false;
+        }
+
+        // Children keep their order, so the survivors are matched by merging
+        // the old constraints with the current children.
+        int removed = 0;
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            final View child = getChildAt(i);
+            while (j < oldCount && mViewConstraints[j].getView().getParent() != this) {
+                removed++;
+                j++;
+            }
+            if (j < oldCount && mViewConstraints[j].getView() == child) {
+                final LayoutParams params = (LayoutParams) child.getLayoutParams();
+                if (params.mLayout != this) {
+                    // Replaced with setLayoutParams().
+                    params.attach(this, child);
+                    params.dirty = true;
+                }
+                if (params.dirty && isSpring(child)) {
+                    return false;
+                }
+                j++;
+            } else {
+                if (isSpring(child) || mIdToViewConstraints.containsKey(child.getId()) || mMissingAnchors.containsKey(child.getId())) {
+                    return false;
                 }
             }
-            if (viewConstraints.isHorizontalSpring() || viewConstraints.isVerticalSpring()) {
-                springMetrics.add(viewConstraints);
+        }
+        for (; j < oldCount; j++) {
+            if (mViewConstraints[j].getView().getParent() == this) {
+                // Children were reordered.
+                return false;
+            }
+            removed++;
+        }
+        if (mRemovedSinceRebuild + removed > count) {
+            // Let the generation drop the nodes of the removed children.
+            return false;
+        }
+        mRemovedSinceRebuild += removed;
+
+        final ViewConstraints[] oldConstraints = mViewConstraints;
+        if (mSpareViewConstraints == null || mSpareViewConstraints.length < count) {
+            mSpareViewConstraints = new ViewConstraints[Math.max(count, oldConstraints.length)];
+        }
+        mViewConstraints = mSpareViewConstraints;
+        mSpareViewConstraints = oldConstraints;
+        mIdToViewConstraints.clear();
+        j = 0;
+        for (int i = 0; i < count; i++) {
+            final View child = getChildAt(i);
+            while (j < oldCount && oldConstraints[j].getView().getParent() != this) {
+                final ViewConstraints removedConstraints = oldConstraints[j++];
+                mMissingAnchors.put(removedConstraints.getView().getId(), 0);
+                recycleViewConstraints(removedConstraints);
+            }
+            if (j < oldCount && oldConstraints[j].getView() == child) {
+                mViewConstraints[i] = oldConstraints[j++];
+            } else {
+                final LayoutParams params = (LayoutParams) child.getLayoutParams();
+                params.attach(this, child);
+                params.dirty = true;
+                mViewConstraints[i] = obtainViewConstraints(child);
+            }
+            if (mIdToViewConstraints.containsKey(child.getId())) {
+                mHasDuplicateIds = true;
+            }
+            mIdToViewConstraints.put(child.getId(), i);
+        }
+        for (; j < oldCount; j++) {
+            mMissingAnchors.put(oldConstraints[j].getView().getId(), 0);
+            recycleViewConstraints(oldConstraints[j]);
+        }
+        for (int i = count; i < mViewConstraints.length; i++) {
+            mViewConstraints[i] = null;
+        }
+
+        for (int i = 0; i < count; i++) {
+            final ViewConstraints viewConstraints = mViewConstraints[i];
+            final View child = viewConstraints.getView();
+            final LayoutParams params = (LayoutParams) child.getLayoutParams();
+            if (params.dirty || viewConstraints.hasReleasedAnchor()) {
+                params.dirty = false;
+                adaptLayoutParameters(child);
+                viewConstraints.clearRelations();
+                applyRelations(viewConstraints);
             }
         }
+        mViewConstraintsCount = count;
+        mProgramX.invalidate();
+        mProgramY.invalidate();
+        return true;
+    }
+
+    private boolean isSpring(View child) {
+        final LayoutParams layoutParams = (LayoutParams) child.getLayoutParams();
+        return layoutParams.getWidthWeight() > 0 || layoutParams.getHeightWeight() > 0;
     }
 
     private ViewConstraints getViewMetrics(int id) {
         if (id == PARENT) {
             return mRootConstraints;
-        } else if (id > 0 && mIdToViewConstraints.indexOfKey(id) >= 0) {
-            return mViewConstraints[mIdToViewConstraints.get(id)];
         }
-        return null;
+        final int index = mIdToViewConstraints.get(id);
+        return index >= 0 ? mViewConstraints[index] : null;
     }
 
     private void adaptLayoutParameters() {
         int count = getChildCount();
         for (int i = 0; i < count; i++) {
-            final View child = getChildAt(i);
-            final LayoutParams childParams = (LayoutParams) child.getLayoutParams();
-            int[] relations = childParams.getRelations();
+            adaptLayoutParameters(getChildAt(i));
+        }
+    }
 
-            if (childParams.getWidthWeight() > 0 && childParams.width != LayoutParams.WRAP_CONTENT) {
-                throw new IllegalArgumentException("widthWeight > 0 not supported for layout_width != WRAP_CONTENT in View: " + child);
-            }
+    private void adaptLayoutParameters(View child) {
+        final LayoutParams childParams = (LayoutParams) child.getLayoutParams();
 
-            if (childParams.getHeightWeight() > 0 && childParams.height != LayoutParams.WRAP_CONTENT) {
-                throw new IllegalArgumentException("heightWeight > 0 not supported for layout_height != WRAP_CONTENT in View: " + child);
-            }
+        if (childParams.getWidthWeight() > 0 && childParams.width != LayoutParams.WRAP_CONTENT) {
+            throw new IllegalArgumentException("widthWeight > 0 not supported for layout_width != WRAP_CONTENT in View: " + child);
+        }
 
-            // If view is aligned both to parent's top and bottom (left and
-            // right) then its height (width) is MATCH_PARENT and the other way
-            // around
-            if (relations[ALIGN_PARENT_TOP] != 0 && relations[ALIGN_PARENT_BOTTOM] != 0) {
-                childParams.height = LayoutParams.MATCH_PARENT;
-            } else if (childParams.height == LayoutParams.MATCH_PARENT) {
-                relations[ALIGN_PARENT_TOP] = relations[ALIGN_PARENT_BOTTOM] = TRUE;
-            }
+        if (childParams.getHeightWeight() > 0 && childParams.height != LayoutParams.WRAP_CONTENT) {
+            throw new IllegalArgumentException("heightWeight > 0 not supported for layout_height != WRAP_CONTENT in View: " + child);
+        }
 
-            if (relations[ALIGN_PARENT_LEFT] != 0 && relations[ALIGN_PARENT_RIGHT] != 0) {
-                childParams.width = LayoutParams.MATCH_PARENT;
-            } else if (childParams.width == LayoutParams.MATCH_PARENT) {
-                relations[ALIGN_PARENT_LEFT] = relations[ALIGN_PARENT_RIGHT] = TRUE;
-            }
+        if (!childParams.isRelationTableValid()) {
+            normalizeRelations(childParams);
+        }
+    }
 
-            if (relations[ALIGN_PARENT_TOP] == TRUE) {
-                relations[ALIGN_TOP] = PARENT;
-            }
+    /**
+     * Resolves the implicit relations of the child, like alignment to the
+     * parent, and stores the relations to anchors in the compact table of
+     * the layout params. The relations set on the params stay as they are.
+     */
+    private void normalizeRelations(LayoutParams childParams) {
+        final int[] relations = mNormalizedRelations;
+        System.arraycopy(childParams.relations, 0, relations, 0, VERB_COUNT);
+
+        // If view is aligned both to parent's top and bottom (left and
+        // right) then its height (width) is MATCH_PARENT and the other way
+        // around
+        if (relations[ALIGN_PARENT_TOP] != 0 && relations[ALIGN_PARENT_BOTTOM] != 0) {
+            childParams.height = LayoutParams.MATCH_PARENT;
+        } else if (childParams.height == LayoutParams.MATCH_PARENT) {
+            relations[ALIGN_PARENT_TOP] = relations[ALIGN_PARENT_BOTTOM] = TRUE;
+        }
 
-            if (relations[ALIGN_PARENT_BOTTOM] == TRUE) {
-                relations[ALIGN_BOTTOM] = PARENT;
-            }
+        if (relations[ALIGN_PARENT_LEFT] != 0 && relations[ALIGN_PARENT_RIGHT] != 0) {
+            childParams.width = LayoutParams.MATCH_PARENT;
+        } else if (childParams.width == LayoutParams.MATCH_PARENT) {
+            relations[ALIGN_PARENT_LEFT] = relations[ALIGN_PARENT_RIGHT] = TRUE;
+        }
 
-            if (relations[ALIGN_PARENT_LEFT] == TRUE) {
-                relations[ALIGN_LEFT] = PARENT;
-            }
+        if (relations[ALIGN_PARENT_TOP] == TRUE) {
+            relations[ALIGN_TOP] = PARENT;
+        }
 
-            if (relations[ALIGN_PARENT_RIGHT] == TRUE) {
-                relations[ALIGN_RIGHT] = PARENT;
-            }
+        if (relations[ALIGN_PARENT_BOTTOM] == TRUE) {
+            relations[ALIGN_BOTTOM] = PARENT;
+        }
 
-            if (relations[ALIGN_CENTER] != 0) {
-                relations[ALIGN_CENTER_HORIZONTALLY] = relations[ALIGN_CENTER];
-                relations[ALIGN_CENTER_VERTICALLY] = relations[ALIGN_CENTER];
-            }
+        if (relations[ALIGN_PARENT_LEFT] == TRUE) {
+            relations[ALIGN_LEFT] = PARENT;
+        }
 
-            if (relations[CENTER_IN_PARENT] == TRUE) {
-                relations[CENTER_HORIZONTAL] = relations[CENTER_VERTICAL] = TRUE;
-            }
+        if (relations[ALIGN_PARENT_RIGHT] == TRUE) {
+            relations[ALIGN_RIGHT] = PARENT;
+        }
 
-            if (relations[CENTER_HORIZONTAL] == TRUE) {
-                relations[ALIGN_CENTER_HORIZONTALLY] = PARENT;
-            }
+        if (relations[ALIGN_CENTER] != 0) {
+            relations[ALIGN_CENTER_HORIZONTALLY] = relations[ALIGN_CENTER];
+            relations[ALIGN_CENTER_VERTICALLY] = relations[ALIGN_CENTER];
+        }
 
-            if (relations[CENTER_VERTICAL] == TRUE) {
-                relations[ALIGN_CENTER_VERTICALLY] = PARENT;
-            }
+        if (relations[CENTER_IN_PARENT] == TRUE) {
+            relations[CENTER_HORIZONTAL] = relations[CENTER_VERTICAL] = TRUE;
+        }
 
-            if (!hasHorizontalRelations(relations)) {
-                relations[ALIGN_LEFT] = PARENT;
-            }
+        if (relations[CENTER_HORIZONTAL] == TRUE) {
+            relations[ALIGN_CENTER_HORIZONTALLY] = PARENT;
+        }
+
+        if (relations[CENTER_VERTICAL] == TRUE) {
+            relations[ALIGN_CENTER_VERTICALLY] = PARENT;
+        }
+
+        if (!hasHorizontalRelations(relations)) {
+            relations[ALIGN_LEFT] = PARENT;
+        }
 
-            if (!hasVerticalRelations(relations)) {
-                relations[ALIGN_TOP] = PARENT;
+        if (!hasVerticalRelations(relations)) {
+            relations[ALIGN_TOP] = PARENT;
+        }
+
+        int count = 0;
+        for (int relation : VALID_RELATIONS) {
+            final int anchor = relations[relation];
+            if (anchor == PARENT || anchor > 0) {
+                childParams.mRelationVerbs[count] = relation;
+                childParams.mRelationAnchors[count] = anchor;
+                count++;
             }
         }
+        childParams.setRelationTable(count);
     }
 
     private boolean hasHorizontalRelations(int[] relations) {
@@ -348,6 +787,15 @@ public class SpringLayout extends ViewGroup {
 
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final LayoutMath.Stats previousStats = mLayoutMath.setClientStats(mInstanceStats);
+        try {
+            measureLayout(widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            mLayoutMath.setClientStats(previousStats);
+        }
+    }
+
+    private void measureLayout(int widthMeasureSpec, int heightMeasureSpec) {
         int myWidth = -1;
         int myHeight = -1;
         int width = 0;
@@ -361,11 +809,23 @@ public class SpringLayout extends ViewGroup {
         final boolean isWrapContentWidth = widthMode != MeasureSpec.EXACTLY;
         final boolean isWrapContentHeight = heightMode != MeasureSpec.EXACTLY;
 
+        if ((mConstraintUpdateDepth == 0 || mChildrenChanged || getChildCount() != mViewConstraintsCount) && applyChildrenChanges()) {
+            mDirtySize = true;
+        }
+
         if (mDirtyHierarchy) {
             mDirtyHierarchy = false;
+            mDirtySize = true;
+            mSolvedLayouts.clear();
+            mSharablePlan = true;
             adaptLayoutParameters();
-            createViewMetrics(mSpringMetrics);
-            handleSprings(mSpringMetrics, isWrapContentWidth, isWrapContentHeight);
+            mLayoutMath.setGeneration(mGeneration);
+            try {
+                createViewMetrics();
+                handleSprings(isWrapContentWidth, isWrapContentHeight);
+            } finally {
+                mLayoutMath.setGeneration(null);
+            }
         }
 
         // Record our dimensions if they are known;
@@ -385,84 +845,486 @@ public class SpringLayout extends ViewGroup {
             height = myHeight;
         }
 
+        if (widthMeasureSpec != mLastWidthMeasureSpec || heightMeasureSpec != mLastHeightMeasureSpec) {
+            mLastWidthMeasureSpec = widthMeasureSpec;
+            mLastHeightMeasureSpec = heightMeasureSpec;
+            mDirtySize = true;
+        }
+
+        if (mLayoutRequestPending) {
+            mLayoutRequestPending = false;
+            if (!mDirtySize && (mRestoredLayout >= 0 || !remeasureRequestingChildren(widthMeasureSpec, heightMeasureSpec))) {
+                mDirtySize = true;
+            }
+        }
+
         if (mDirtySize) {
             mDirtySize = false;
-            invalidateMathCache();
+            mLayoutMath.invalidate();
+            // After a cache hit the children bounds do not come from the last
+            // solve, so all of them are written again.
+            final int lastSolveX = mRestoredLayout >= 0 ? -1 : mProgramX.getSolveCount();
+            final int lastSolveY = mRestoredLayout >= 0 ? -1 : mProgramY.getSolveCount();
             updateChildrenSize(widthMeasureSpec, heightMeasureSpec);
-            updateLayoutSize(isWrapContentWidth, width, isWrapContentHeight, height);
-            cacheLayoutPositions();
+            if (mReplacedLayoutParams) {
+                mReplacedLayoutParams = false;
+                mDirtySize = true;
+                measureLayout(widthMeasureSpec, heightMeasureSpec);
+                return;
+            }
+            final int keyLength = writeSolvedLayoutKey(widthMeasureSpec, heightMeasureSpec);
+            mRestoredLayout = mProgramX.isUpToDate() && mProgramY.isUpToDate() ? mSolvedLayouts.find(keyLength) : -1;
+            if (mRestoredLayout >= 0) {
+                restoreLayoutPositions(mRestoredLayout);
+            } else {
+                updateLayoutSize(isWrapContentWidth, width, isWrapContentHeight, height);
+                ensureLayoutPrograms();
+                mProgramX.solve();
+                mProgramY.solve();
+                cacheLayoutPositions(lastSolveX, lastSolveY);
+                storeLayoutPositions(keyLength);
+            }
         }
 
-        setMeasuredDimension(mRootConstraints.right.getValue(), mRootConstraints.bottom.getValue());
+        if (mRestoredLayout >= 0) {
+            setMeasuredDimension(mSolvedLayouts.getWidth(mRestoredLayout), mSolvedLayouts.getHeight(mRestoredLayout));
+        } else {
+            setMeasuredDimension(mProgramX.getValue(mRootRightRegister), mProgramY.getValue(mRootBottomRegister));
+        }
     }
 
-    private void invalidateMathCache() {
-        mRootConstraints.invalidate();
-        for (int i = 0; i < getChildCount(); i++) {
+    /**
+     * Writes the inputs of the solve into the key of {@link #mSolvedLayouts}:
+     * the measure specs, padding and the sizes and margins of the children.
+     * Everything else only changes together with the constraints, which
+     * clears the cache.
+     *
+     * @return Length of the key.
+     */
+    private int writeSolvedLayoutKey(int widthMeasureSpec, int heightMeasureSpec) {
+        final int count = getChildCount();
+        final int[] key = mSolvedLayouts.getKey(6 + count * 9);
+        int k = 0;
+        key[k++] = widthMeasureSpec;
+        key[k++] = heightMeasureSpec;
+        key[k++] = getPaddingLeft();
+        key[k++] = getPaddingRight();
+        key[k++] = getPaddingTop();
+        key[k++] = getPaddingBottom();
+        for (int i = 0; i < count; i++) {
             final ViewConstraints viewConstraints = mViewConstraints[i];
-            viewConstraints.invalidate();
+            key[k++] = viewConstraints.getView().getVisibility();
+            key[k++] = viewConstraints.measuredWidth.getRawValue();
+            key[k++] = viewConstraints.measuredHeight.getRawValue();
+            key[k++] = viewConstraints.relativeWidth.getRawValue();
+            key[k++] = viewConstraints.relativeHeight.getRawValue();
+            key[k++] = viewConstraints.leftMargin.getRawValue();
+            key[k++] = viewConstraints.rightMargin.getRawValue();
+            key[k++] = viewConstraints.topMargin.getRawValue();
+            key[k++] = viewConstraints.bottomMargin.getRawValue();
         }
+        return k;
     }
 
-    private void updateChildrenSize(final int widthMeasureSpec, final int heightMeasureSpec) {
+    private void storeLayoutPositions(int keyLength) {
+        final int count = getChildCount();
+        final int entry = mSolvedLayouts.put(keyLength, count * 4);
+        final int[] bounds = mSolvedLayouts.getBounds(entry);
+        for (int i = 0; i < count; i++) {
+            final LayoutParams st = (LayoutParams) mViewConstraints[i].getView().getLayoutParams();
+            bounds[i * 4] = st.left;
+            bounds[i * 4 + 1] = st.top;
+            bounds[i * 4 + 2] = st.right;
+            bounds[i * 4 + 3] = st.bottom;
+        }
+        mSolvedLayouts.setSize(entry, mProgramX.getValue(mRootRightRegister), mProgramY.getValue(mRootBottomRegister));
+    }
+
+    /**
+     * Counterpart of {@link #cacheLayoutPositions(int, int)} for a layout
+     * found in {@link #mSolvedLayouts}.
+     */
+    private void restoreLayoutPositions(int entry) {
+        final int[] bounds = mSolvedLayouts.getBounds(entry);
         for (int i = 0; i < getChildCount(); i++) {
             final ViewConstraints viewConstraints = mViewConstraints[i];
             final View v = viewConstraints.getView();
-            final LayoutParams layoutParams = (LayoutParams) v.getLayoutParams();
-            final int mL = layoutParams.leftMargin, mR = layoutParams.rightMargin, mT = layoutParams.topMargin, mB = layoutParams.bottomMargin;
-            measureChildWithMargins(v, widthMeasureSpec, 0, heightMeasureSpec, 0);
-
-            if (!viewConstraints.isHorizontalSpring()) {
-                Value childWidth;
-                if (v.getVisibility() == View.GONE) {
-                    childWidth = mLayoutMath.variable(0);
-                } else if (layoutParams.relativeWidth > 0) {
-                    childWidth = mRootConstraints.innerRight.subtract(mRootConstraints.innerLeft)
-                            .multiply(mLayoutMath.variable(layoutParams.relativeWidth))
-                            .divide(mLayoutMath.variable(RELATIVE_SIZE_DENOMINATOR));
-                } else {
-                    childWidth = mLayoutMath.variable(v.getMeasuredWidth());
+            final LayoutParams st = (LayoutParams) v.getLayoutParams();
+            st.left = bounds[i * 4];
+            st.top = bounds[i * 4 + 1];
+            st.right = bounds[i * 4 + 2];
+            st.bottom = bounds[i * 4 + 3];
+            if (!hasExactSize(v) || (!viewConstraints.measured && v.isLayoutRequested())) {
+                measureChildToSolvedSize(viewConstraints);
+            }
+        }
+    }
+
+    /**
+     * Handles a layout request coming from children, e.g. a text change, by
+     * measuring again just the children which requested layout. The current
+     * solution is kept if none of their sizes changed.
+     *
+     * @return False if the layout has to be solved again: a size changed or
+     *         no child requested layout, so the request came from the layout
+     *         itself.
+     */
+    private boolean remeasureRequestingChildren(int widthMeasureSpec, int heightMeasureSpec) {
+        if (getPaddingLeft() != mRootConstraints.leftMargin.getRawValue()
+                || getPaddingRight() != mRootConstraints.rightMargin.getRawValue()
+                || getPaddingTop() != mRootConstraints.topMargin.getRawValue()
+                || getPaddingBottom() != mRootConstraints.bottomMargin.getRawValue()) {
+            return false;
+        }
+        boolean requested = false;
+        final int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            final ViewConstraints viewConstraints = mViewConstraints[i];
+            final View v = viewConstraints.getView();
+            if (v.isLayoutRequested()) {
+                requested = true;
+                updateChildSize(viewConstraints, widthMeasureSpec, heightMeasureSpec);
+            }
+        }
+        if (!requested || mReplacedLayoutParams || mProgramX.hasPendingChanges() || mProgramY.hasPendingChanges()) {
+            return false;
+        }
+        // Sizes stay the same, children not measured above still have to
+        // measure their content and children measured with the spec of the
+        // layout, e.g. with one axis constrained, their solved size.
+        for (int i = 0; i < count; i++) {
+            final ViewConstraints viewConstraints = mViewConstraints[i];
+            final View v = viewConstraints.getView();
+            if (v.isLayoutRequested() && (!viewConstraints.measured || !hasExactSize(v))) {
+                measureChildToSolvedSize(viewConstraints);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wires the children changed since the last call into the constraints,
+     * or marks the hierarchy for rebuilding if it cannot be done
+     * incrementally.
+     *
+     * @return True if anything changed.
+     */
+    private boolean applyChildrenChanges() {
+        boolean changed = false;
+        if (!mDirtyHierarchy && (mChildrenChanged || !mDirtyChildren.isEmpty() || getChildCount() != mViewConstraintsCount)) {
+            changed = true;
+            mSolvedLayouts.clear();
+            // Incremental wiring is not guaranteed to build the same graph
+            // as a rebuild would, so the programs are compiled on their own.
+            mSharablePlan = false;
+            boolean updated = false;
+            mLayoutMath.setGeneration(mGeneration);
+            try {
+                updated = updateViewMetrics();
+            } finally {
+                mLayoutMath.setGeneration(null);
+                // Partially applied changes are dropped by the rebuild.
+                mDirtyHierarchy = !updated;
+            }
+        }
+        mChildrenChanged = false;
+        mDirtyChildren.clear();
+        return changed;
+    }
+
+    /**
+     * Orders the constraint graphs into the layout programs, unless they did
+     * not change since the last compilation.
+     */
+    private void ensureLayoutPrograms() {
+        try {
+            if (!mProgramX.isUpToDate()) {
+                compileLayoutProgram(mProgramX, true);
+                mRootRightRegister = mPlanRegisters[0];
+                for (int i = 0; i < getChildCount(); i++) {
+                    final ViewConstraints viewConstraints = mViewConstraints[i];
+                    viewConstraints.innerLeftRegister = mPlanRegisters[1 + i * 3];
+                    viewConstraints.innerRightRegister = mPlanRegisters[2 + i * 3];
+                    viewConstraints.rightRegister = mPlanRegisters[3 + i * 3];
                 }
+            }
+            if (!mProgramY.isUpToDate()) {
+                compileLayoutProgram(mProgramY, false);
+                mRootBottomRegister = mPlanRegisters[0];
+                for (int i = 0; i < getChildCount(); i++) {
+                    final ViewConstraints viewConstraints = mViewConstraints[i];
+                    viewConstraints.innerTopRegister = mPlanRegisters[1 + i * 3];
+                    viewConstraints.innerBottomRegister = mPlanRegisters[2 + i * 3];
+                    viewConstraints.bottomRegister = mPlanRegisters[3 + i * 3];
+                }
+            }
+        } catch (CircularDependencyException e) {
+            throw new IllegalStateException("Constraints of a view could not be resolved (circular dependency: " + describeCycle(e.getCycle())
+                    + "), please review your layout. Problematic layout: " + this, e);
+        }
+    }
 
-                viewConstraints.leftMargin.setValue(mL);
-                viewConstraints.rightMargin.setValue(mR);
+    /**
+     * Compiles the roots of one axis, the root edge followed by the inner
+     * edges and the outer far edge of each child, and puts their registers
+     * into {@link #mPlanRegisters}. Layouts with the same structure share the
+     * compiled code through a {@link LayoutPlan}, so only the first of them
+     * compiles it.
+     */
+    private void compileLayoutProgram(LayoutProgram program, boolean horizontal) {
+        final int count = getChildCount();
+        final int rootCount = 1 + count * 3, slotCount = 3 + count * 4;
+        if (mPlanRoots.length < rootCount) {
+            mPlanRoots = new Value[rootCount];
+            mPlanRegisters = new int[rootCount];
+        }
+        if (mPlanSlots.length < slotCount) {
+            mPlanSlots = new Variable[slotCount];
+        }
+        final ViewConstraints root = mRootConstraints;
+        mPlanRoots[0] = horizontal ? root.right : root.bottom;
+        mPlanSlots[0] = horizontal ? root.leftMargin : root.topMargin;
+        mPlanSlots[1] = horizontal ? root.rightMargin : root.bottomMargin;
+        mPlanSlots[2] = horizontal ? mLayoutWidth : mLayoutHeight;
+        for (int i = 0; i < count; i++) {
+            final ViewConstraints viewConstraints = mViewConstraints[i];
+            mPlanRoots[1 + i * 3] = horizontal ? viewConstraints.innerLeft : viewConstraints.innerTop;
+            mPlanRoots[2 + i * 3] = horizontal ? viewConstraints.innerRight : viewConstraints.innerBottom;
+            mPlanRoots[3 + i * 3] = horizontal ? viewConstraints.right : viewConstraints.bottom;
+            mPlanSlots[3 + i * 4] = horizontal ? viewConstraints.leftMargin : viewConstraints.topMargin;
+            mPlanSlots[4 + i * 4] = horizontal ? viewConstraints.rightMargin : viewConstraints.bottomMargin;
+            mPlanSlots[5 + i * 4] = horizontal ? viewConstraints.measuredWidth : viewConstraints.measuredHeight;
+            mPlanSlots[6 + i * 4] = horizontal ? viewConstraints.relativeWidth : viewConstraints.relativeHeight;
+        }
+        try {
+            final int keyLength = mSharablePlan ? writePlanKey(horizontal) : 0;
+            final LayoutPlan plan = keyLength > 0 ? LayoutPlan.find(mPlanKey, keyLength) : null;
+            if (plan != null && program.adopt(plan, mPlanSlots, mPlanRoots, rootCount)) {
+                System.arraycopy(plan.roots, 0, mPlanRegisters, 0, rootCount);
+            } else {
+                program.reset();
+                for (int i = 0; i < rootCount; i++) {
+                    mPlanRegisters[i] = program.compile(mPlanRoots[i]);
+                }
+                final LayoutPlan created = keyLength > 0 ? program.createPlan(mPlanSlots, slotCount, mPlanRegisters, rootCount) : null;
+                if (created != null) {
+                    LayoutPlan.register(mPlanKey, keyLength, created);
+                }
+            }
+        } finally {
+            Arrays.fill(mPlanRoots, 0, rootCount, null);
+            Arrays.fill(mPlanSlots, 0, slotCount, null);
+        }
+    }
 
-                Value outerWidth = childWidth.add(mLayoutMath.variable(mL + mR)).retain();
-                viewConstraints.setWidth(outerWidth);
-                outerWidth.release();
+    /**
+     * Writes the fingerprint of the structure of one axis into
+     * {@link #mPlanKey}: the relations of the children with anchors resolved
+     * to child indices, their weights and kinds of sizes. Values of the
+     * variables are not part of it.
+     *
+     * @return Length of the fingerprint.
+     */
+    private int writePlanKey(boolean horizontal) {
+        final int count = getChildCount();
+        int length = 2;
+        for (int i = 0; i < count; i++) {
+            length += 3 + ((LayoutParams) mViewConstraints[i].getView().getLayoutParams()).mRelationCount * 2;
+        }
+        if (mPlanKey.length < length) {
+            mPlanKey = new int[length];
+        }
+        final int[] key = mPlanKey;
+        int k = 0;
+        key[k++] = horizontal ? 0 : 1;
+        key[k++] = count;
+        for (int i = 0; i < count; i++) {
+            final ViewConstraints viewConstraints = mViewConstraints[i];
+            final View v = viewConstraints.getView();
+            final LayoutParams layoutParams = (LayoutParams) v.getLayoutParams();
+            if (horizontal ? viewConstraints.isHorizontalSpring() : viewConstraints.isVerticalSpring()) {
+                key[k++] = horizontal ? layoutParams.widthWeight : layoutParams.heightWeight;
+                key[k++] = -1;
+            } else {
+                key[k++] = 0;
+                key[k++] = getSizeKind(v, horizontal ? layoutParams.relativeWidth : layoutParams.relativeHeight);
             }
+            key[k++] = layoutParams.mRelationCount;
+            for (int j = 0; j < layoutParams.mRelationCount; j++) {
+                final int anchor = layoutParams.mRelationAnchors[j];
+                key[k++] = layoutParams.mRelationVerbs[j];
+                key[k++] = anchor == PARENT ? -2 : mIdToViewConstraints.get(anchor);
+            }
+        }
+        return k;
+    }
 
-            if (!viewConstraints.isVerticalSpring()) {
-                Value childHeight;
-                if (v.getVisibility() == View.GONE) {
-                    childHeight = mLayoutMath.variable(0);
-                } else if (layoutParams.relativeHeight > 0) {
-                    childHeight = mRootConstraints.innerBottom.subtract(mRootConstraints.innerTop)
-                            .multiply(mLayoutMath.variable(layoutParams.relativeHeight))
-                            .divide(mLayoutMath.variable(RELATIVE_SIZE_DENOMINATOR));
-                } else {
-                    childHeight = mLayoutMath.variable(v.getMeasuredHeight());
+    /**
+     * @return Number of constraint graph nodes used to solve the layout in
+     *         the last measure pass.
+     */
+    public int getConstraintNodeCount() {
+        return mProgramX.getNodeCount() + mProgramY.getNodeCount();
+    }
+
+    /**
+     * @return Number of instructions the constraint graph was reduced to in
+     *         the last measure pass, after wrappers were elided, constants
+     *         folded and identical expressions merged.
+     */
+    public int getOptimizedConstraintNodeCount() {
+        return mProgramX.size() + mProgramY.size();
+    }
+
+    /**
+     * @return Snapshot of the counters of constraint graph nodes: allocated,
+     *         pooled, live, pool hits, misses and peak per node type. Cheap
+     *         enough to be polled in production.
+     */
+    public LayoutMath.Stats getLayoutMathStats() {
+        return mLayoutMath.getStats();
+    }
+
+    /**
+     * @return True if the children bounds of the last measure pass were taken
+     *         from the solved layout cache instead of being solved.
+     */
+    public boolean isSolvedLayoutRestored() {
+        return mRestoredLayout >= 0;
+    }
+
+    /**
+     * @return True if both axes run code compiled by another layout of the
+     *         same structure.
+     */
+    public boolean usesSharedLayoutPlans() {
+        return mProgramX.usesSharedCode() && mProgramY.usesSharedCode();
+    }
+
+    private String describeCycle(Value[] cycle) {
+        final StringBuilder builder = new StringBuilder();
+        for (Value node : cycle) {
+            String edge = mRootConstraints.getEdgeName(node);
+            View view = this;
+            for (int i = 0; edge == null && i < getChildCount(); i++) {
+                edge = mViewConstraints[i].getEdgeName(node);
+                view = mViewConstraints[i].getView();
+            }
+            if (edge != null) {
+                if (builder.length() > 0) {
+                    builder.append(" -> ");
                 }
+                builder.append(view == this ? "parent" : getViewName(view)).append('.').append(edge);
+            }
+        }
+        return builder.toString();
+    }
 
-                viewConstraints.topMargin.setValue(mT);
-                viewConstraints.bottomMargin.setValue(mB);
+    private String getViewName(View view) {
+        final int id = view.getId();
+        if (id != View.NO_ID) {
+            try {
+                return getResources().getResourceEntryName(id);
+            } catch (Resources.NotFoundException e) {
+                return "0x" + Integer.toHexString(id);
+            }
+        }
+        return view.toString();
+    }
+
+    private void updateChildrenSize(final int widthMeasureSpec, final int heightMeasureSpec) {
+        for (int i = 0; i < getChildCount(); i++) {
+            updateChildSize(mViewConstraints[i], widthMeasureSpec, heightMeasureSpec);
+        }
+    }
+
+    private void updateChildSize(final ViewConstraints viewConstraints, final int widthMeasureSpec, final int heightMeasureSpec) {
+        final View v = viewConstraints.getView();
+        final LayoutParams layoutParams = (LayoutParams) v.getLayoutParams();
+        if (layoutParams.mLayout != this) {
+            // Replaced with setLayoutParams(), which requested the layout
+            // measuring the child now. It is wired again before solving.
+            layoutParams.attach(this, v);
+            layoutParams.dirty = true;
+            onChildLayoutParamsChanged(v);
+            mReplacedLayoutParams = true;
+        }
+        final int mL = layoutParams.leftMargin, mR = layoutParams.rightMargin, mT = layoutParams.topMargin, mB = layoutParams.bottomMargin;
+        // Children which size follows from the constraints are measured
+        // only once, with the solved size.
+        viewConstraints.measured = !isWidthConstrained(viewConstraints, layoutParams)
+                || !isHeightConstrained(viewConstraints, layoutParams);
+        if (viewConstraints.measured) {
+            measureChildWithSpecs(viewConstraints,
+                    getChildMeasureSpec(widthMeasureSpec, getPaddingLeft() + getPaddingRight() + mL + mR, layoutParams.width),
+                    getChildMeasureSpec(heightMeasureSpec, getPaddingTop() + getPaddingBottom() + mT + mB, layoutParams.height));
+        }
 
-                Value outerHeight = childHeight.add(mLayoutMath.variable(mT + mB)).retain();
-                viewConstraints.setHeight(outerHeight);
-                outerHeight.release();
+        if (!viewConstraints.isHorizontalSpring()) {
+            viewConstraints.leftMargin.setValue(mL);
+            viewConstraints.rightMargin.setValue(mR);
+
+            // Only the values of the leaves change, so the program does
+            // not have to be compiled again unless the kind of size does.
+            final int kind = getSizeKind(v, layoutParams.relativeWidth);
+            if (kind == ViewConstraints.SIZE_RELATIVE) {
+                viewConstraints.relativeWidth.setValue(layoutParams.relativeWidth);
+            } else if (kind == ViewConstraints.SIZE_MEASURED) {
+                viewConstraints.measuredWidth.setValue(viewConstraints.measured ? v.getMeasuredWidth() : Math.max(layoutParams.width, 0));
             }
+            viewConstraints.setWidth(viewConstraints.getOuterWidth(kind, mRootConstraints));
         }
+
+        if (!viewConstraints.isVerticalSpring()) {
+            viewConstraints.topMargin.setValue(mT);
+            viewConstraints.bottomMargin.setValue(mB);
+
+            final int kind = getSizeKind(v, layoutParams.relativeHeight);
+            if (kind == ViewConstraints.SIZE_RELATIVE) {
+                viewConstraints.relativeHeight.setValue(layoutParams.relativeHeight);
+            } else if (kind == ViewConstraints.SIZE_MEASURED) {
+                viewConstraints.measuredHeight.setValue(viewConstraints.measured ? v.getMeasuredHeight() : Math.max(layoutParams.height, 0));
+            }
+            viewConstraints.setHeight(viewConstraints.getOuterHeight(kind, mRootConstraints));
+        }
+    }
+
+    private static int getSizeKind(View v, int relativeSize) {
+        if (v.getVisibility() == View.GONE) {
+            return ViewConstraints.SIZE_GONE;
+        } else if (relativeSize > 0) {
+            return ViewConstraints.SIZE_RELATIVE;
+        }
+        return ViewConstraints.SIZE_MEASURED;
     }
 
-    private void handleSprings(final Stack<ViewConstraints> springMetrics, final boolean isWrapContentWidth,
-            final boolean isWrapContentHeight) {
-        if (!springMetrics.isEmpty()) {
+    /**
+     * @return True if the width of the child is known without measuring it:
+     *         it is given in the layout params, follows from the anchors or
+     *         the parent, or the child is gone.
+     */
+    private boolean isWidthConstrained(ViewConstraints viewConstraints, LayoutParams layoutParams) {
+        return layoutParams.width >= 0 || layoutParams.relativeWidth > 0 || viewConstraints.isHorizontalSpring()
+                || viewConstraints.hasHorizontalEdgesAnchored() || viewConstraints.getView().getVisibility() == View.GONE;
+    }
+
+    /**
+     * @see #isWidthConstrained(ViewConstraints, LayoutParams)
+     */
+    private boolean isHeightConstrained(ViewConstraints viewConstraints, LayoutParams layoutParams) {
+        return layoutParams.height >= 0 || layoutParams.relativeHeight > 0 || viewConstraints.isVerticalSpring()
+                || viewConstraints.hasVerticalEdgesAnchored() || viewConstraints.getView().getVisibility() == View.GONE;
+    }
+
+    private void handleSprings(final boolean isWrapContentWidth, final boolean isWrapContentHeight) {
+        if (mSpringMetricsCount > 0) {
             mHorizontalChains.clear();
             mVerticalChains.clear();
-            while (!springMetrics.isEmpty()) {
-                final ViewConstraints spring = springMetrics.pop();
-                final ViewConstraints chainHeadX = getChainHorizontalHead(spring);
-                final ViewConstraints chainHeadY = getChainVerticalHead(spring);
+            while (mSpringMetricsCount > 0) {
+                final ViewConstraints spring = mSpringMetrics[--mSpringMetricsCount];
+                mSpringMetrics[mSpringMetricsCount] = null;
+                final ViewConstraints chainHeadX = spring.getChainHorizontalHead();
+                final ViewConstraints chainHeadY = spring.getChainVerticalHead();
                 if (chainHeadX != null) {
                     if (isWrapContentWidth && mMinWidth <= 0) {
                         throw new IllegalStateException("Horizontal springs not supported when layout width is wrap_content");
@@ -481,7 +1343,7 @@ public class SpringLayout extends ViewGroup {
             for (int i = 0; i < mHorizontalChains.size(); i++) {
                 final ViewConstraints chainHead = mHorizontalChains.get(i);
                 int totalWeight = 0;
-                Value contentWidth = mLayoutMath.variable(0);
+                int contentSizeCount = 0;
                 final ValueWrapper totalWeightWrapper = mLayoutMath.wrap();
                 final ValueWrapper chainWidthWrapper = mLayoutMath.wrap();
                 ViewConstraints chainElem = chainHead, prevElem = null;
@@ -491,25 +1353,27 @@ public class SpringLayout extends ViewGroup {
                         chainElem.markHorizontalSpringUsed();
                         final int weight = ((LayoutParams) chainElem.getView().getLayoutParams()).widthWeight;
                         totalWeight += weight;
-                        final Value width = chainWidthWrapper.multiply(mLayoutMath.variable(weight)).divide(totalWeightWrapper)
-                                .max(mLayoutMath.variable(0)).retain();
+                        final Value width = chainWidthWrapper.mulDiv(mLayoutMath.constant(weight), totalWeightWrapper)
+                                .max(mLayoutMath.constant(0)).retain();
                         chainElem.setWidth(width);
                         width.release();
                     } else {
-                        contentWidth = contentWidth.add(chainElem.getWidth());
+                        contentSizeCount = addChainOperand(chainElem.getWidth(), contentSizeCount);
                     }
                     prevElem = chainElem;
                     chainElem = chainElem.nextX;
                 }
                 end = prevElem.right;
-                totalWeightWrapper.setValueObject(mLayoutMath.variable(totalWeight));
+                final Value contentWidth = mLayoutMath.sum(mChainOperands, contentSizeCount);
+                clearChainOperands(contentSizeCount);
+                totalWeightWrapper.setValueObject(mLayoutMath.constant(totalWeight));
                 chainWidthWrapper.setValueObject(end.subtract(start).subtract(contentWidth));
             }
 
             for (int i = 0; i < mVerticalChains.size(); i++) {
                 final ViewConstraints chainHead = mVerticalChains.get(i);
                 int totalWeight = 0;
-                Value contentHeight = mLayoutMath.variable(0);
+                int contentSizeCount = 0;
                 final ValueWrapper totalWeightWrapper = mLayoutMath.wrap();
                 final ValueWrapper chainWidthWrapper = mLayoutMath.wrap();
                 ViewConstraints chainElem = chainHead, prevElem = null;
@@ -519,23 +1383,41 @@ public class SpringLayout extends ViewGroup {
                         chainElem.markVerticalSpringUsed();
                         final int weight = ((LayoutParams) chainElem.getView().getLayoutParams()).heightWeight;
                         totalWeight += weight;
-                        final Value height = chainWidthWrapper.multiply(mLayoutMath.variable(weight)).divide(totalWeightWrapper)
-                                .max(mLayoutMath.variable(0)).retain();
+                        final Value height = chainWidthWrapper.mulDiv(mLayoutMath.constant(weight), totalWeightWrapper)
+                                .max(mLayoutMath.constant(0)).retain();
                         chainElem.setHeight(height);
                         height.release();
                     } else {
-                        contentHeight = contentHeight.add(chainElem.getHeight());
+                        contentSizeCount = addChainOperand(chainElem.getHeight(), contentSizeCount);
                     }
                     prevElem = chainElem;
                     chainElem = chainElem.nextY;
                 }
                 end = prevElem.bottom;
-                totalWeightWrapper.setValueObject(mLayoutMath.variable(totalWeight));
+                final Value contentHeight = mLayoutMath.sum(mChainOperands, contentSizeCount);
+                clearChainOperands(contentSizeCount);
+                totalWeightWrapper.setValueObject(mLayoutMath.constant(totalWeight));
                 chainWidthWrapper.setValueObject(end.subtract(start).subtract(contentHeight));
             }
         }
     }
 
+    private int addChainOperand(Value value, int count) {
+        if (count == mChainOperands.length) {
+            final Value[] chainOperands = new Value[count * 2];
+            System.arraycopy(mChainOperands, 0, chainOperands, 0, count);
+            mChainOperands = chainOperands;
+        }
+        mChainOperands[count] = value;
+        return count + 1;
+    }
+
+    private void clearChainOperands(int count) {
+        for (int i = 0; i < count; i++) {
+            mChainOperands[i] = null;
+        }
+    }
+
     private void updateLayoutSize(final boolean isWrapContentWidth, int width, final boolean isWrapContentHeight, int height) {
         final int pL = getPaddingLeft(), pR = getPaddingRight(), pT = getPaddingTop(), pB = getPaddingBottom();
 
@@ -544,50 +1426,69 @@ public class SpringLayout extends ViewGroup {
         mRootConstraints.topMargin.setValue(pT);
         mRootConstraints.bottomMargin.setValue(pB);
 
-        Value widthValue, heightValue;
+        if (!isWrapContentWidth) {
+            mLayoutWidth.setValue(width);
+        }
+
+        if (!isWrapContentHeight) {
+            mLayoutHeight.setValue(height);
+        }
+
+        if (!isWrapContentWidth && !isWrapContentHeight) {
+            return;
+        }
+
+        // The wrapped size is the extent of the children which do not depend
+        // on it. They are solved first, while the layout size still holds
+        // the previous value, so its dependents are evaluated only once it is
+        // known and only if it changed.
+        ensureLayoutPrograms();
 
         if (isWrapContentWidth) {
+            mProgramX.solve();
             int maxSize = mMinWidth > 0 ? mMinWidth : -1;
             for (int i = 0; i < getChildCount(); i++) {
                 final ViewConstraints viewConstraints = mViewConstraints[i];
-                try {
-                    maxSize = Math.max(maxSize, viewConstraints.right.getValue() + pR);
-                    viewConstraints.right.invalidate();
-                } catch (IllegalStateException e) {
+                if (!mProgramX.dependsOn(viewConstraints.rightRegister, mLayoutWidth)
+                        && mProgramX.isKnown(viewConstraints.rightRegister)) {
+                    maxSize = Math.max(maxSize, mProgramX.getValue(viewConstraints.rightRegister) + pR);
                 }
             }
             if (maxSize < 0) {
                 throw new IllegalStateException(
                         "Parent layout_width == wrap_content is not supported if width of all children depends on parent width.");
             }
-            widthValue = mLayoutMath.variable(maxSize);
-        } else {
-            widthValue = mLayoutMath.variable(width);
+            mLayoutWidth.setValue(maxSize);
         }
-        mRootConstraints.right.setValueObject(widthValue);
 
         if (isWrapContentHeight) {
+            mProgramY.solve();
             int maxSize = mMinHeight > 0 ? mMinHeight : -1;
             for (int i = 0; i < getChildCount(); i++) {
                 final ViewConstraints viewConstraints = mViewConstraints[i];
-                try {
-                    maxSize = Math.max(maxSize, viewConstraints.bottom.getValue() + pB);
-                    viewConstraints.bottom.invalidate();
-                } catch (IllegalStateException e) {
+                if (!mProgramY.dependsOn(viewConstraints.bottomRegister, mLayoutHeight)
+                        && mProgramY.isKnown(viewConstraints.bottomRegister)) {
+                    maxSize = Math.max(maxSize, mProgramY.getValue(viewConstraints.bottomRegister) + pB);
                 }
             }
             if (maxSize < 0) {
                 throw new IllegalStateException(
                         "Parent layout_height == wrap_content is not supported if height of all children depends on parent height.");
             }
-            heightValue = mLayoutMath.variable(maxSize);
-        } else {
-            heightValue = mLayoutMath.variable(height);
+            mLayoutHeight.setValue(maxSize);
         }
-        mRootConstraints.bottom.setValueObject(heightValue);
     }
 
-    private void cacheLayoutPositions() {
+    /**
+     * @param lastSolveX
+     *            Solve count of the horizontal program in the previous
+     *            measure pass.
+     * @param lastSolveY
+     *            Solve count of the vertical program in the previous measure
+     *            pass. Children which edges did not change since then are
+     *            skipped.
+     */
+    private void cacheLayoutPositions(int lastSolveX, int lastSolveY) {
         for (int i = 0; i < getChildCount(); i++) {
             final ViewConstraints viewConstraints = mViewConstraints[i];
             final View v = viewConstraints.getView();
@@ -599,76 +1500,173 @@ public class SpringLayout extends ViewGroup {
                 throw new IllegalStateException(
                         "Vertical weight defined but never used, please review your layout. Remember that the chain of views cannot divert when using springs: Problematic view (please also check other dependant views): "
                                 + v + ", problematic layout: " + this);
-            } else {
-                int anchor = 0;
-                try {
-                    SpringLayout.LayoutParams st = (SpringLayout.LayoutParams) v.getLayoutParams();
-                    anchor = LEFT;
-                    st.left = viewConstraints.innerLeft.getValue();
-                    anchor = RIGHT;
-                    st.right = viewConstraints.innerRight.getValue();
-                    anchor = TOP;
-                    st.top = viewConstraints.innerTop.getValue();
-                    anchor = BOTTOM;
-                    st.bottom = viewConstraints.innerBottom.getValue();
-                    v.measure(MeasureSpec.makeMeasureSpec(st.right - st.left, MeasureSpec.EXACTLY),
-                            MeasureSpec.makeMeasureSpec(st.bottom - st.top, MeasureSpec.EXACTLY));
-                } catch (IllegalStateException e) {
+            } else if (hasChangedSince(viewConstraints, lastSolveX, lastSolveY) || !hasExactSize(v)
+                    || (!viewConstraints.measured && v.isLayoutRequested())) {
+                final int anchor = getUnknownAnchor(viewConstraints);
+                if (anchor >= 0) {
                     throw new IllegalStateException("View " + ANCHOR_NAMES[anchor] + " position could not be calculated, please review your layout. Remember that A.above = B and B.below = A are not equivalent in terms of calculation order, please refer to documentation. Problematic view (please also check other dependant views): "
-                                    + v + ", problematic layout: " + this, e);
-                } catch (StackOverflowError e) {
-                    throw new IllegalStateException(
-                            "Constraints of a view could not be resolved (circular dependency), please review your layout. Problematic view (please also check other dependant views): "
                                     + v + ", problematic layout: " + this);
                 }
+                SpringLayout.LayoutParams st = (SpringLayout.LayoutParams) v.getLayoutParams();
+                st.left = mProgramX.getValue(viewConstraints.innerLeftRegister);
+                st.right = mProgramX.getValue(viewConstraints.innerRightRegister);
+                st.top = mProgramY.getValue(viewConstraints.innerTopRegister);
+                st.bottom = mProgramY.getValue(viewConstraints.innerBottomRegister);
+                // A child measured to the solved size already has it, one
+                // skipped above still has to measure its content.
+                if (!hasExactSize(v) || (!viewConstraints.measured && v.isLayoutRequested())) {
+                    measureChildToSolvedSize(viewConstraints);
+                }
             }
         }
     }
 
-    private ViewConstraints getChainVerticalHead(ViewConstraints spring) {
-        if (spring.nextY == null && spring.prevY == null) {
-            return null;
-        } else {
-            while (spring.prevY != null) {
-                spring = spring.prevY;
-            }
-            return spring;
+    /**
+     * @return Anchor of the first edge of the view which position could not be
+     *         calculated or -1 if all of them are known.
+     */
+    private int getUnknownAnchor(ViewConstraints viewConstraints) {
+        if (!mProgramX.isKnown(viewConstraints.innerLeftRegister)) {
+            return LEFT;
+        } else if (!mProgramX.isKnown(viewConstraints.innerRightRegister)) {
+            return RIGHT;
+        } else if (!mProgramY.isKnown(viewConstraints.innerTopRegister)) {
+            return TOP;
+        } else if (!mProgramY.isKnown(viewConstraints.innerBottomRegister)) {
+            return BOTTOM;
         }
+        return -1;
     }
 
-    private ViewConstraints getChainHorizontalHead(ViewConstraints spring) {
-        if (spring.nextX == null && spring.prevX == null) {
-            return null;
-        } else {
-            while (spring.prevX != null) {
-                spring = spring.prevX;
-            }
-            return spring;
+    private boolean hasChangedSince(ViewConstraints viewConstraints, int solveCountX, int solveCountY) {
+        return mProgramX.hasChangedSince(viewConstraints.innerLeftRegister, solveCountX)
+                || mProgramX.hasChangedSince(viewConstraints.innerRightRegister, solveCountX)
+                || mProgramY.hasChangedSince(viewConstraints.innerTopRegister, solveCountY)
+                || mProgramY.hasChangedSince(viewConstraints.innerBottomRegister, solveCountY);
+    }
+
+    /**
+     * Measures the child, marking it for layout if the specs differ from the
+     * ones it was measured with last time.
+     */
+    private void measureChildWithSpecs(ViewConstraints viewConstraints, int widthMeasureSpec, int heightMeasureSpec) {
+        if (widthMeasureSpec != viewConstraints.widthMeasureSpec || heightMeasureSpec != viewConstraints.heightMeasureSpec) {
+            viewConstraints.widthMeasureSpec = widthMeasureSpec;
+            viewConstraints.heightMeasureSpec = heightMeasureSpec;
+            viewConstraints.layoutRequired = true;
         }
+        viewConstraints.getView().measure(widthMeasureSpec, heightMeasureSpec);
+    }
+
+    private void measureChildToSolvedSize(ViewConstraints viewConstraints) {
+        final LayoutParams st = (LayoutParams) viewConstraints.getView().getLayoutParams();
+        measureChildWithSpecs(viewConstraints, MeasureSpec.makeMeasureSpec(st.right - st.left, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(st.bottom - st.top, MeasureSpec.EXACTLY));
+    }
+
+    private boolean hasExactSize(View v) {
+        final SpringLayout.LayoutParams st = (SpringLayout.LayoutParams) v.getLayoutParams();
+        return v.getMeasuredWidth() == st.right - st.left && v.getMeasuredHeight() == st.bottom - st.top;
     }
 
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
         final int count = getChildCount();
+        int movedCount = 0;
         for (int i = 0; i < count; i++) {
-            View child = getChildAt(i);
+            final ViewConstraints viewConstraints = mViewConstraints[i];
+            final View child = viewConstraints.getView();
             if (child.getVisibility() != View.GONE) {
                 SpringLayout.LayoutParams st = (SpringLayout.LayoutParams) child.getLayoutParams();
-                child.layout(st.left, st.top, st.right, st.bottom);
+                // Children keep their bounds between passes, so only the
+                // moved ones, those measured with new specs and those
+                // waiting for a layout are laid out.
+                final boolean moved = child.getLeft() != st.left || child.getTop() != st.top || child.getRight() != st.right
+                        || child.getBottom() != st.bottom;
+                if (moved && mOnChildBoundsChangeListener != null) {
+                    addMovedChild(movedCount++, child);
+                }
+                if (moved || viewConstraints.layoutRequired || child.isLayoutRequested()) {
+                    child.layout(st.left, st.top, st.right, st.bottom);
+                    viewConstraints.layoutRequired = false;
+                }
             }
         }
+        if (movedCount > 0) {
+            try {
+                mOnChildBoundsChangeListener.onChildBoundsChanged(this, mMovedChildren, mMovedBounds, movedCount);
+            } finally {
+                for (int i = 0; i < movedCount; i++) {
+                    mMovedChildren[i] = null;
+                }
+            }
+        }
+    }
+
+    private void addMovedChild(int index, View child) {
+        if (index == mMovedChildren.length) {
+            final View[] movedChildren = new View[index * 2];
+            System.arraycopy(mMovedChildren, 0, movedChildren, 0, index);
+            mMovedChildren = movedChildren;
+            final int[] movedBounds = new int[index * 2 * 4];
+            System.arraycopy(mMovedBounds, 0, movedBounds, 0, index * 4);
+            mMovedBounds = movedBounds;
+        }
+        mMovedChildren[index] = child;
+        mMovedBounds[index * 4] = child.getLeft();
+        mMovedBounds[index * 4 + 1] = child.getTop();
+        mMovedBounds[index * 4 + 2] = child.getRight();
+        mMovedBounds[index * 4 + 3] = child.getBottom();
+    }
+
+    /**
+     * Registers a listener notified after each layout pass which moved or
+     * resized any children, e.g. to invalidate only the regions which
+     * changed or to animate the children from their previous bounds.
+     *
+     * @param listener
+     *            Listener or null to remove it.
+     */
+    public void setOnChildBoundsChangeListener(OnChildBoundsChangeListener listener) {
+        mOnChildBoundsChangeListener = listener;
+    }
+
+    /**
+     * Notified about the children which bounds changed in a layout pass.
+     */
+    public interface OnChildBoundsChangeListener {
+        /**
+         * Called at the end of a layout pass, when the children already have
+         * their new bounds. Arrays are reused by the next pass and must not
+         * be kept.
+         *
+         * @param layout
+         *            Layout the children belong to.
+         * @param children
+         *            Children which bounds changed, valid up to count.
+         * @param oldBounds
+         *            Left, top, right and bottom of each of the children
+         *            before the pass, four values per child.
+         * @param count
+         *            Number of the children.
+         */
+        void onChildBoundsChanged(SpringLayout layout, View[] children, int[] oldBounds, int count);
     }
 
     @Override
     public void setMinimumHeight(int minHeight) {
         super.setMinimumHeight(minHeight);
         mMinHeight = minHeight;
+        mDirtySize = true;
+        mSolvedLayouts.clear();
     }
 
     @Override
     public void setMinimumWidth(int minWidth) {
         super.setMinimumWidth(minWidth);
         mMinWidth = minWidth;
+        mDirtySize = true;
+        mSolvedLayouts.clear();
     }
 
     @Override
@@ -738,10 +1736,22 @@ public class SpringLayout extends ViewGroup {
                 @ViewDebug.IntToString(from = TRUE, to = "true"), @ViewDebug.IntToString(from = 0, to = "false/NO_ID"),
                 @ViewDebug.IntToString(from = PARENT, to = "parent") })
         int[] relations = new int[VERB_COUNT];
+        // Relations to anchors resolved from the relations above, with
+        // implicit parent alignment applied. Kept until the relations or the
+        // size modes change.
+        final int[] mRelationVerbs = new int[VALID_RELATIONS.length];
+        final int[] mRelationAnchors = new int[VALID_RELATIONS.length];
+        int mRelationCount = -1;
+        private final int[] mTableRelations = new int[VERB_COUNT];
+        private int mTableWidth, mTableHeight;
         int left, top, right, bottom;
         int relativeHeight, relativeWidth;
         int heightWeight = 0, widthWeight = 0;
         boolean dirty = true;
+        // Layout and child the params belong to, notified when relations
+        // change.
+        SpringLayout mLayout;
+        private View mView;
 
         public LayoutParams(Context c, AttributeSet attrs) {
             super(c, attrs);
@@ -844,9 +1854,35 @@ public class SpringLayout extends ViewGroup {
             super(source);
         }
 
+        boolean isRelationTableValid() {
+            return mRelationCount >= 0 && mTableWidth == width && mTableHeight == height
+                    && Arrays.equals(mTableRelations, relations);
+        }
+
+        void setRelationTable(int count) {
+            mRelationCount = count;
+            mTableWidth = width;
+            mTableHeight = height;
+            System.arraycopy(relations, 0, mTableRelations, 0, VERB_COUNT);
+        }
+
+        void attach(SpringLayout layout, View view) {
+            mLayout = layout;
+            mView = view;
+        }
+
+        private void markDirty() {
+            if (!dirty) {
+                dirty = true;
+                if (mLayout != null) {
+                    mLayout.onChildLayoutParamsChanged(mView);
+                }
+            }
+        }
+
         public void addRelation(int relation, int anchor) {
             relations[relation] = anchor;
-            dirty = true;
+            markDirty();
         }
 
         /**
@@ -866,6 +1902,7 @@ public class SpringLayout extends ViewGroup {
         }
 
         public void setRelativeHeight(int relativeHeight) {
+            markDirty();
             this.relativeHeight = relativeHeight;
         }
 
@@ -874,7 +1911,7 @@ public class SpringLayout extends ViewGroup {
         }
 
         public void setRelativeWidth(int relativeWidth) {
-            dirty = true;
+            markDirty();
             this.relativeWidth = relativeWidth;
         }
 
@@ -883,7 +1920,7 @@ public class SpringLayout extends ViewGroup {
         }
 
         public void setWidthWeight(int widthWeight) {
-            dirty = true;
+            markDirty();
             this.widthWeight = widthWeight;
         }
 
@@ -892,18 +1929,18 @@ public class SpringLayout extends ViewGroup {
         }
 
         public void setHeightWeight(int heightWeight) {
-            dirty = true;
+            markDirty();
             this.heightWeight = heightWeight;
         }
 
         public void setWidth(int width) {
             if (this.width != width) {
                 if (width == MATCH_PARENT || this.width == MATCH_PARENT) {
-                    dirty = true;
+                    markDirty();
                 }
                 if (width != WRAP_CONTENT || this.width == WRAP_CONTENT) {
                     this.widthWeight = 0;
-                    dirty = true;
+                    markDirty();
                 }
                 this.width = width;
             }
@@ -912,11 +1949,11 @@ public class SpringLayout extends ViewGroup {
         public void setHeight(int height) {
             if (this.height != height) {
                 if (height == MATCH_PARENT || this.height == MATCH_PARENT) {
-                    dirty = true;
+                    markDirty();
                 }
                 if (height != WRAP_CONTENT || this.height == WRAP_CONTENT) {
                     this.heightWeight = 0;
-                    dirty = true;
+                    markDirty();
                 }
                 this.height = height;
             }
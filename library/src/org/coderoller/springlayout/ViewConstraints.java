@@ -11,6 +11,8 @@ import static org.coderoller.springlayout.SpringLayout.BELOW;
 import static org.coderoller.springlayout.SpringLayout.LEFT_OF;
 import static org.coderoller.springlayout.SpringLayout.RIGHT_OF;
 
+import java.util.Arrays;
+
 import org.coderoller.springlayout.LayoutMath.Value;
 import org.coderoller.springlayout.LayoutMath.ValueWrapper;
 import org.coderoller.springlayout.LayoutMath.Variable;
@@ -38,6 +40,11 @@ public class ViewConstraints {
     static final byte VERTICAL_SPRING = 1 << 2;
     static final byte VERTICAL_SPRING_USED = 1 << 3;
 
+    static final int SIZE_MEASURED = 0;
+    static final int SIZE_RELATIVE = 1;
+    static final int SIZE_GONE = 2;
+    private static final int SIZE_KIND_COUNT = 3;
+
     private byte mRelationFlags;
     private View mView;
     private byte mSpring;
@@ -47,13 +54,41 @@ public class ViewConstraints {
     ValueWrapper left, right, top, bottom;
     Variable topMargin, bottomMargin, leftMargin, rightMargin;
     ValueWrapper width, height;
+    // Leaves of the size expressions, updated in place on every measure
+    // pass.
+    Variable measuredWidth, measuredHeight, relativeWidth, relativeHeight;
 
     Value innerLeft, innerRight, innerTop, innerBottom;
+    // Registers of the edges in the compiled layout program.
+    int innerLeftRegister, innerRightRegister, innerTopRegister, innerBottomRegister;
+    int rightRegister, bottomRegister;
+    // Set if the view was measured with the parent's specs in the current
+    // measure pass.
+    boolean measured;
+    // Specs the layout measured the view with last, -1 before the first
+    // measure. The view has to be laid out again when they change, even if
+    // its bounds stay the same, as its content may be arranged differently.
+    int widthMeasureSpec, heightMeasureSpec;
+    boolean layoutRequired;
 
     // Used for building horizontal and vertical view chains.
     ViewConstraints prevX, nextX, prevY, nextY;
+    // Union-find parents of the chains, the root of a chain holds its head.
+    // Chains are only joined, so they are valid until relations are cleared
+    // and rebuilt with the hierarchy.
+    private ViewConstraints mChainParentX, mChainParentY;
+    private ViewConstraints mChainHeadX, mChainHeadY;
+    // Views the relations were applied to, indexed by relation.
+    private final ViewConstraints[] mAnchors = new ViewConstraints[ALIGN_CENTER_VERTICALLY + 1];
 
     private Value mCenterHorizontalAlignment, mCenterVerticalAlignment;
+    // Centers of this view, shared by all views aligned to it.
+    private Value mHorizontalCenter, mVerticalCenter;
+    // Sizes including margins for each kind of size, kept between measure
+    // passes so the structure of the graph does not change when only the
+    // sizes do.
+    private final Value[] mOuterWidths = new Value[SIZE_KIND_COUNT];
+    private final Value[] mOuterHeights = new Value[SIZE_KIND_COUNT];
 
     public ViewConstraints(View view, LayoutMath layoutMath) {
         mLayoutMath = layoutMath;
@@ -65,6 +100,11 @@ public class ViewConstraints {
         mRelationFlags = 0;
         mView = view;
         mSpring = 0;
+        prevX = nextX = prevY = nextY = null;
+        mChainParentX = mChainParentY = mChainHeadX = mChainHeadY = this;
+        mCenterHorizontalAlignment = null;
+        mCenterVerticalAlignment = null;
+        Arrays.fill(mAnchors, null);
         left = mLayoutMath.wrap().retain();
         right = mLayoutMath.wrap().retain();
         top = mLayoutMath.wrap().retain();
@@ -75,12 +115,26 @@ public class ViewConstraints {
         rightMargin = mLayoutMath.variable().retain();
         width = mLayoutMath.wrap().retain();
         height = mLayoutMath.wrap().retain();
+        measuredWidth = mLayoutMath.variable().retain();
+        measuredHeight = mLayoutMath.variable().retain();
+        relativeWidth = mLayoutMath.variable().retain();
+        relativeHeight = mLayoutMath.variable().retain();
 
         innerLeft = left.add(leftMargin).retain();
         innerRight = right.subtract(rightMargin).retain();
         innerTop = top.add(topMargin).retain();
         innerBottom = bottom.subtract(bottomMargin).retain();
 
+        mHorizontalCenter = null;
+        mVerticalCenter = null;
+        for (int i = 0; i < SIZE_KIND_COUNT; i++) {
+            mOuterWidths[i] = null;
+            mOuterHeights[i] = null;
+        }
+
+        widthMeasureSpec = heightMeasureSpec = -1;
+        layoutRequired = false;
+
         mActive = true;
     }
 
@@ -96,17 +150,83 @@ public class ViewConstraints {
             rightMargin.release();
             width.release();
             height.release();
+            measuredWidth.release();
+            measuredHeight.release();
+            relativeWidth.release();
+            relativeHeight.release();
 
             innerLeft.release();
             innerRight.release();
             innerTop.release();
             innerBottom.release();
 
+            if (mHorizontalCenter != null) {
+                mHorizontalCenter.release();
+            }
+            if (mVerticalCenter != null) {
+                mVerticalCenter.release();
+            }
+            for (int i = 0; i < SIZE_KIND_COUNT; i++) {
+                if (mOuterWidths[i] != null) {
+                    mOuterWidths[i].release();
+                }
+                if (mOuterHeights[i] != null) {
+                    mOuterHeights[i].release();
+                }
+            }
+
             mView = null;
             mActive = false;
         }
     }
 
+    /**
+     * Detaches the edges of the view from its anchors, so its relations can
+     * be applied again. Nodes of the view stay the same, so views anchored
+     * to it do not have to be updated.
+     */
+    void clearRelations() {
+        final Value unknown = mLayoutMath.unknown();
+        mRelationFlags = 0;
+        mSpring = 0;
+        left.setValueObject(unknown);
+        right.setValueObject(unknown);
+        top.setValueObject(unknown);
+        bottom.setValueObject(unknown);
+        width.setValueObject(unknown);
+        height.setValueObject(unknown);
+        mCenterHorizontalAlignment = null;
+        mCenterVerticalAlignment = null;
+        if (prevX != null && prevX.nextX == this) {
+            prevX.nextX = null;
+        }
+        if (nextX != null && nextX.prevX == this) {
+            nextX.prevX = null;
+        }
+        if (prevY != null && prevY.nextY == this) {
+            prevY.nextY = null;
+        }
+        if (nextY != null && nextY.prevY == this) {
+            nextY.prevY = null;
+        }
+        prevX = nextX = prevY = nextY = null;
+        mChainParentX = mChainParentY = mChainHeadX = mChainHeadY = this;
+        Arrays.fill(mAnchors, null);
+    }
+
+    /**
+     * @return True if a relation of the view was applied to a view which
+     *         constraints were released since then.
+     */
+    boolean hasReleasedAnchor() {
+        for (ViewConstraints anchor : mAnchors) {
+            if (anchor != null && !anchor.mActive) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Update child metrics based on relation to this view.
      * 
@@ -120,11 +240,13 @@ public class ViewConstraints {
             throw new IllegalStateException(relationTypeToString(relation) + " relation " + child.getView() + " to " + mView
                     + " already exists! Failed on " + relationToString(relation) + ", please review your layout.");
         }
+        child.mAnchors[relation] = this;
         switch (relation) {
         case LEFT_OF:
             if (prevX == null && child.nextX == null) {
                 prevX = child;
                 child.nextX = this;
+                child.findChainRootX().joinChainX(this);
             }
             child.right.setValueObject(left);
             break;
@@ -132,6 +254,7 @@ public class ViewConstraints {
             if (nextX == null && child.prevX == null) {
                 nextX = child;
                 child.prevX = this;
+                findChainRootX().joinChainX(child);
             }
             child.left.setValueObject(right);
             break;
@@ -145,6 +268,7 @@ public class ViewConstraints {
             if (prevY == null && child.nextY == null) {
                 prevY = child;
                 child.nextY = this;
+                child.findChainRootY().joinChainY(this);
             }
             child.bottom.setValueObject(top);
             break;
@@ -152,6 +276,7 @@ public class ViewConstraints {
             if (nextY == null && child.prevY == null) {
                 nextY = child;
                 child.prevY = this;
+                findChainRootY().joinChainY(child);
             }
             child.top.setValueObject(bottom);
             break;
@@ -203,8 +328,12 @@ public class ViewConstraints {
             alignment = mCenterVerticalAlignment;
             sizeWrapper = height;
         }
+        if (sizeWrapper.getValueObject() == size) {
+            // Edges were already built for this size.
+            return;
+        }
         if ((mRelationFlags & centerFlag) != 0) {
-            Value halfSize = size.divide(mLayoutMath.variable(2));
+            Value halfSize = size.divide(mLayoutMath.constant(2));
             start.setValueObject(alignment.subtract(halfSize));
             end.setValueObject(alignment.add(halfSize));
             sizeWrapper.setValueObject(size);
@@ -256,25 +385,62 @@ public class ViewConstraints {
         }
     }
 
-    void invalidate() {
-        width.invalidate();
-        height.invalidate();
-        innerTop.invalidate();
-        innerBottom.invalidate();
-        innerLeft.invalidate();
-        innerRight.invalidate();
-        top.invalidate();
-        bottom.invalidate();
-        left.invalidate();
-        right.invalidate();
-    }
-
     Value getHorizontalCenter() {
-        return innerLeft.add(innerRight).divide(mLayoutMath.variable(2));
+        if (mHorizontalCenter == null) {
+            mHorizontalCenter = innerLeft.add(innerRight).divide(mLayoutMath.constant(2)).retain();
+        }
+        return mHorizontalCenter;
     }
 
     Value getVerticalCenter() {
-        return innerTop.add(innerBottom).divide(mLayoutMath.variable(2));
+        if (mVerticalCenter == null) {
+            mVerticalCenter = innerTop.add(innerBottom).divide(mLayoutMath.constant(2)).retain();
+        }
+        return mVerticalCenter;
+    }
+
+    /**
+     * @param kind
+     *            One of {@link #SIZE_MEASURED}, {@link #SIZE_RELATIVE} or
+     *            {@link #SIZE_GONE}.
+     * @param parent
+     *            Constraints of the parent layout.
+     * @return Width of the view including margins. The expression is built
+     *         once per kind, later calls return the same node.
+     */
+    Value getOuterWidth(int kind, ViewConstraints parent) {
+        if (mOuterWidths[kind] == null) {
+            final Value size;
+            if (kind == SIZE_MEASURED) {
+                size = measuredWidth;
+            } else if (kind == SIZE_RELATIVE) {
+                size = parent.innerRight.subtract(parent.innerLeft).mulDiv(relativeWidth,
+                        mLayoutMath.constant(SpringLayout.RELATIVE_SIZE_DENOMINATOR));
+            } else {
+                size = mLayoutMath.constant(0);
+            }
+            mOuterWidths[kind] = size.add(leftMargin).add(rightMargin).retain();
+        }
+        return mOuterWidths[kind];
+    }
+
+    /**
+     * @see #getOuterWidth(int, ViewConstraints)
+     */
+    Value getOuterHeight(int kind, ViewConstraints parent) {
+        if (mOuterHeights[kind] == null) {
+            final Value size;
+            if (kind == SIZE_MEASURED) {
+                size = measuredHeight;
+            } else if (kind == SIZE_RELATIVE) {
+                size = parent.innerBottom.subtract(parent.innerTop).mulDiv(relativeHeight,
+                        mLayoutMath.constant(SpringLayout.RELATIVE_SIZE_DENOMINATOR));
+            } else {
+                size = mLayoutMath.constant(0);
+            }
+            mOuterHeights[kind] = size.add(topMargin).add(bottomMargin).retain();
+        }
+        return mOuterHeights[kind];
     }
 
     boolean isHorizontalSpring() {
@@ -317,6 +483,37 @@ public class ViewConstraints {
         return height;
     }
 
+    /**
+     * @param value
+     *            Node of the value graph.
+     * @return Name of the edge represented by the node or null if the node
+     *         is not one of the edges of this view.
+     */
+    String getEdgeName(Value value) {
+        if (value == left) {
+            return "left";
+        } else if (value == right) {
+            return "right";
+        } else if (value == top) {
+            return "top";
+        } else if (value == bottom) {
+            return "bottom";
+        } else if (value == innerLeft) {
+            return "innerLeft";
+        } else if (value == innerRight) {
+            return "innerRight";
+        } else if (value == innerTop) {
+            return "innerTop";
+        } else if (value == innerBottom) {
+            return "innerBottom";
+        } else if (value == width) {
+            return "width";
+        } else if (value == height) {
+            return "height";
+        }
+        return null;
+    }
+
     void dump() {
         Log.d(TAG, "mView = " + mView);
         Log.d(TAG, "x1 = " + left);
@@ -325,6 +522,67 @@ public class ViewConstraints {
         Log.d(TAG, "y2 = " + bottom);
     }
 
+    private ViewConstraints findChainRootX() {
+        ViewConstraints node = this;
+        while (node.mChainParentX != node) {
+            node.mChainParentX = node.mChainParentX.mChainParentX;
+            node = node.mChainParentX;
+        }
+        return node;
+    }
+
+    private ViewConstraints findChainRootY() {
+        ViewConstraints node = this;
+        while (node.mChainParentY != node) {
+            node.mChainParentY = node.mChainParentY.mChainParentY;
+            node = node.mChainParentY;
+        }
+        return node;
+    }
+
+    /**
+     * Appends the chain starting at the given view to the chain this root
+     * belongs to.
+     */
+    private void joinChainX(ViewConstraints next) {
+        next.findChainRootX().mChainParentX = this;
+    }
+
+    private void joinChainY(ViewConstraints next) {
+        next.findChainRootY().mChainParentY = this;
+    }
+
+    /**
+     * @return First view of the horizontal chain this view belongs to or null
+     *         if it is not part of a chain.
+     */
+    ViewConstraints getChainHorizontalHead() {
+        return hasHorizontalSibling() ? findChainRootX().mChainHeadX : null;
+    }
+
+    /**
+     * @return First view of the vertical chain this view belongs to or null
+     *         if it is not part of a chain.
+     */
+    ViewConstraints getChainVerticalHead() {
+        return hasVerticalSibling() ? findChainRootY().mChainHeadY : null;
+    }
+
+    /**
+     * @return True if both horizontal edges of the view are anchored, so its
+     *         width follows from the anchors and not from its measured size.
+     */
+    boolean hasHorizontalEdgesAnchored() {
+        return (mRelationFlags & (LEFT_ANCHOR | RIGHT_ANCHOR | CENTER_HORIZONTAL_ANCHOR)) == (LEFT_ANCHOR | RIGHT_ANCHOR);
+    }
+
+    /**
+     * @see #hasHorizontalEdgesAnchored()
+     */
+    boolean hasVerticalEdgesAnchored() {
+        return (mRelationFlags & (TOP_ANCHOR | BOTTOM_ANCHOR | CENTER_VERTICAL_ANCHOR)) == (TOP_ANCHOR | BOTTOM_ANCHOR);
+    }
+
     boolean hasHorizontalSibling() {
         return nextX != null || prevX != null;
     }
@@ -107,6 +107,119 @@ public class LayoutMathTest extends TestCase {
         assertEquals(1, mTestMath.getBinaryOperationPoolSize());
     }
 
+    public void testStats() {
+        LayoutMath.Value v = mTestMath.variable(1).retain();
+        LayoutMath.Value wrapper = mTestMath.wrap(v.add(mTestMath.variable(2))).retain();
+        v.release();
+        wrapper.release();
+        mTestMath.variable(3).retain();
+        LayoutMath.Stats stats = mTestMath.getStats();
+        assertEquals(2, stats.getAllocated(LayoutMath.Stats.VARIABLE));
+        assertEquals(1, stats.getPooled(LayoutMath.Stats.VARIABLE));
+        assertEquals(1, stats.getLive(LayoutMath.Stats.VARIABLE));
+        assertEquals(1, stats.getHits(LayoutMath.Stats.VARIABLE));
+        assertEquals(2, stats.getMisses(LayoutMath.Stats.VARIABLE));
+        assertEquals(2, stats.getPeakLive(LayoutMath.Stats.VARIABLE));
+        assertEquals(0, stats.getLive(LayoutMath.Stats.BINARY_OPERATION));
+        assertEquals(1, stats.getTotalLive());
+    }
+
+    public void testPrewarmAndTrim() {
+        mTestMath.prewarm(LayoutMath.Stats.VALUE_WRAPPER, 10);
+        assertEquals(10, mTestMath.getValueWrapperPoolSize());
+        LayoutMath.Value wrapper = mTestMath.wrap().retain();
+        LayoutMath.Stats stats = mTestMath.getStats();
+        assertEquals(1, stats.getHits(LayoutMath.Stats.VALUE_WRAPPER));
+        assertEquals(0, stats.getMisses(LayoutMath.Stats.VALUE_WRAPPER));
+        assertEquals(6, mTestMath.trim(3));
+        assertEquals(3, mTestMath.getValueWrapperPoolSize());
+        wrapper.release();
+        assertEquals(4, mTestMath.getValueWrapperPoolSize());
+        assertEquals(4, mTestMath.getStats().getAllocated(LayoutMath.Stats.VALUE_WRAPPER));
+    }
+
+    public void testPrewarmCountsGenerationNodes() {
+        LayoutMath.Generation generation = mTestMath.newGeneration();
+        mTestMath.setGeneration(generation);
+        mTestMath.variable(1).add(mTestMath.variable(2));
+        mTestMath.setGeneration(null);
+        LayoutMath.Stats hint = mTestMath.getStats();
+        assertEquals(2, hint.getPeakLive(LayoutMath.Stats.VARIABLE));
+        // The generation still holds its nodes, nothing is missing.
+        mTestMath.prewarm(hint);
+        assertEquals(0, mTestMath.getVariablePoolSize());
+        assertEquals(0, mTestMath.getBinaryOperationPoolSize());
+        generation.recycle();
+        mTestMath.prewarm(LayoutMath.Stats.VARIABLE, 3);
+        assertEquals(3, mTestMath.getVariablePoolSize());
+    }
+
+    public void testUnknownValueNotCounted() {
+        LayoutMath.Value unknown = mTestMath.unknown().retain();
+        unknown.release();
+        mTestMath.wrap().retain().release();
+        LayoutMath.Stats stats = mTestMath.getStats();
+        assertEquals(1, stats.getTotalPooled());
+        assertEquals(0, stats.getTotalLive());
+    }
+
+    public void testClientStats() {
+        LayoutMath.Stats client = new LayoutMath.Stats();
+        mTestMath.variable(1).retain().release();
+        mTestMath.setClientStats(client);
+        LayoutMath.Value v = mTestMath.wrap(mTestMath.variable(2)).retain();
+        mTestMath.setClientStats(null);
+        assertEquals(1, client.getHits(LayoutMath.Stats.VARIABLE));
+        assertEquals(1, client.getMisses(LayoutMath.Stats.VALUE_WRAPPER));
+        assertEquals(2, client.getTotalLive());
+        assertEquals(2, mTestMath.getStats().getMisses(LayoutMath.Stats.VARIABLE) + mTestMath.getStats().getMisses(LayoutMath.Stats.VALUE_WRAPPER));
+        mTestMath.setClientStats(client);
+        v.release();
+        mTestMath.setClientStats(null);
+        assertEquals(0, client.getTotalLive());
+        assertSame(LayoutMath.getThreadInstance(), LayoutMath.getThreadInstance());
+    }
+
+    public void testGeneration() {
+        LayoutMath.Generation generation = mTestMath.newGeneration();
+        LayoutMath.Variable shared = mTestMath.variable(5).retain();
+        mTestMath.setGeneration(generation);
+        LayoutMath.ValueWrapper wrapper = mTestMath.wrap(shared.add(mTestMath.constant(1))).retain();
+        mTestMath.setGeneration(null);
+        assertEquals("( 5 + 1 )", wrapper.toString());
+        wrapper.release();
+        assertEquals(0, mTestMath.getValueWrapperPoolSize());
+        shared.release();
+        assertEquals(0, mTestMath.getVariablePoolSize());
+        generation.release();
+        assertEquals(1, mTestMath.getVariablePoolSize());
+        mTestMath.setGeneration(generation);
+        mTestMath.wrap(mTestMath.variable(1).add(mTestMath.variable(2)));
+        mTestMath.setGeneration(null);
+        // The second variable is taken from the pool.
+        assertEquals(0, mTestMath.getVariablePoolSize());
+        LayoutMath.Stats stats = mTestMath.getStats();
+        assertEquals(2, stats.getArenaSize(LayoutMath.Stats.VARIABLE));
+        assertEquals(2, stats.getLive(LayoutMath.Stats.VARIABLE));
+        assertEquals(1, stats.getHits(LayoutMath.Stats.VALUE_WRAPPER));
+        assertEquals(2, stats.getHits(LayoutMath.Stats.VARIABLE));
+        generation.recycle();
+        assertEquals(1, mTestMath.getValueWrapperPoolSize());
+        assertEquals(2, mTestMath.getVariablePoolSize());
+        assertEquals(0, mTestMath.getStats().getTotalLive());
+    }
+
+    public void testLongChainRelease() {
+        LayoutMath.Value value = mTestMath.variable(0);
+        for (int i = 0; i < 100000; i++) {
+            value = mTestMath.wrap(value);
+        }
+        value.retain();
+        value.release();
+        assertEquals(1, mTestMath.getVariablePoolSize());
+        assertEquals(100000, mTestMath.getValueWrapperPoolSize());
+    }
+
     public void tearDown() throws Exception {
         super.tearDown();
         mTestMath = null;
@@ -0,0 +1,134 @@
+package org.coderoller.springlayoutsample.test;
+
+import android.test.AndroidTestCase;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+import org.coderoller.springlayout.LayoutMath;
+import org.coderoller.springlayout.LayoutMath.Value;
+import org.coderoller.springlayout.LayoutMath.Variable;
+import org.coderoller.springlayout.LayoutPlan;
+import org.coderoller.springlayout.LayoutProgram;
+import org.coderoller.springlayout.SpringLayout;
+
+public class LayoutPlanTest extends AndroidTestCase {
+    LayoutMath mTestMath;
+    // Registers of the roots in the program the plan was created from.
+    int[] mRoots;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mTestMath = new LayoutMath();
+    }
+
+    /**
+     * @return Plan of ( a + b ) and ( ( a + b ) - c ) with a, b and c bound
+     *         to the slots.
+     */
+    private LayoutPlan createPlan() {
+        final LayoutProgram program = new LayoutProgram(mTestMath);
+        program.reset();
+        final Variable a = mTestMath.variable(1), b = mTestMath.variable(2), c = mTestMath.variable(3);
+        final Value sum = a.add(b);
+        mRoots = new int[] { program.compile(sum), program.compile(sum.subtract(c)) };
+        final LayoutPlan plan = program.createPlan(new Variable[] { a, b, c }, 3, mRoots, 2);
+        assertNotNull(plan);
+        return plan;
+    }
+
+    public void testAdopt() {
+        final LayoutPlan plan = createPlan();
+        final LayoutProgram program = new LayoutProgram(mTestMath);
+        final Variable a = mTestMath.variable(10), b = mTestMath.variable(20), c = mTestMath.variable(5);
+        final Value sum = a.add(b);
+        assertTrue(program.adopt(plan, new Variable[] { a, b, c }, new Value[] { sum, sum.subtract(c) }, 2));
+        assertTrue(program.usesSharedCode());
+        program.solve();
+        assertEquals(30, program.getValue(mRoots[0]));
+        assertEquals(25, program.getValue(mRoots[1]));
+        c.setValue(10);
+        program.solve();
+        assertEquals(20, program.getValue(mRoots[1]));
+    }
+
+    public void testAdoptRejectsUnboundVariable() {
+        final LayoutPlan plan = createPlan();
+        final LayoutProgram program = new LayoutProgram(mTestMath);
+        final Variable a = mTestMath.variable(10), b = mTestMath.variable(20), c = mTestMath.variable(5);
+        final Variable other = mTestMath.variable(7);
+        final Value sum = a.add(b);
+        final Value difference = sum.subtract(other);
+        assertFalse(program.adopt(plan, new Variable[] { a, b, c }, new Value[] { sum, difference }, 2));
+        assertFalse(program.usesSharedCode());
+        // The program falls back to being compiled.
+        program.compile(sum);
+        final int register = program.compile(difference);
+        program.solve();
+        assertEquals(23, program.getValue(register));
+    }
+
+    public void testAdoptRejectsDifferentNodeCount() {
+        final LayoutPlan plan = createPlan();
+        final LayoutProgram program = new LayoutProgram(mTestMath);
+        final Variable a = mTestMath.variable(10), b = mTestMath.variable(20), c = mTestMath.variable(5);
+        final Value sum = a.add(b);
+        final Value difference = sum.subtract(c).add(c);
+        assertFalse(program.adopt(plan, new Variable[] { a, b, c }, new Value[] { sum, difference }, 2));
+        assertFalse(program.usesSharedCode());
+        program.compile(sum);
+        final int register = program.compile(difference);
+        program.solve();
+        assertEquals(30, program.getValue(register));
+    }
+
+    /**
+     * @return Layout with a button on the right, a label filling the rest of
+     *         the width and a footer below the button.
+     */
+    private SpringLayout createLayout() {
+        final SpringLayout layout = new SpringLayout(getContext());
+        final View button = new View(getContext());
+        button.setId(1);
+        final SpringLayout.LayoutParams buttonParams = new SpringLayout.LayoutParams(100, 40);
+        buttonParams.addRelation(SpringLayout.ALIGN_RIGHT, SpringLayout.PARENT);
+        layout.addView(button, buttonParams);
+        final View label = new View(getContext());
+        label.setId(2);
+        final SpringLayout.LayoutParams labelParams = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.WRAP_CONTENT, 20);
+        labelParams.addRelation(SpringLayout.ALIGN_LEFT, SpringLayout.PARENT);
+        labelParams.addRelation(SpringLayout.LEFT_OF, 1);
+        layout.addView(label, labelParams);
+        final View footer = new View(getContext());
+        footer.setId(3);
+        final SpringLayout.LayoutParams footerParams = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.MATCH_PARENT, 30);
+        footerParams.addRelation(SpringLayout.BELOW, 1);
+        layout.addView(footer, footerParams);
+        final int spec = MeasureSpec.makeMeasureSpec(480, MeasureSpec.EXACTLY);
+        layout.measure(spec, spec);
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+        return layout;
+    }
+
+    public void testIdenticalLayoutsSharePlan() {
+        final SpringLayout first = createLayout();
+        final SpringLayout second = createLayout();
+        assertTrue(second.usesSharedLayoutPlans());
+        for (int i = 0; i < first.getChildCount(); i++) {
+            final View expected = first.getChildAt(i), actual = second.getChildAt(i);
+            assertEquals(expected.getLeft(), actual.getLeft());
+            assertEquals(expected.getTop(), actual.getTop());
+            assertEquals(expected.getRight(), actual.getRight());
+            assertEquals(expected.getBottom(), actual.getBottom());
+        }
+        assertEquals(0, second.getChildAt(1).getLeft());
+        assertEquals(380, second.getChildAt(1).getRight());
+        assertEquals(40, second.getChildAt(2).getTop());
+        assertEquals(480, second.getChildAt(2).getRight());
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        mTestMath = null;
+        mRoots = null;
+    }
+}
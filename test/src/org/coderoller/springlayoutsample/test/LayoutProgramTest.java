@@ -0,0 +1,256 @@
+package org.coderoller.springlayoutsample.test;
+
+import junit.framework.TestCase;
+
+import org.coderoller.springlayout.LayoutMath;
+import org.coderoller.springlayout.LayoutProgram;
+
+public class LayoutProgramTest extends TestCase {
+    LayoutMath mTestMath;
+    LayoutProgram mTestProgram;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mTestMath = new LayoutMath();
+        mTestProgram = new LayoutProgram(mTestMath);
+    }
+
+    public void testSimpleProgram() {
+        LayoutMath.Value x1 = mTestMath.variable(10);
+        LayoutMath.Value x2 = mTestMath.variable(320);
+        LayoutMath.Value w = mTestMath.variable(64);
+        LayoutMath.ValueWrapper wrapper = mTestMath.wrap(x2.subtract(x1).subtract(w)).retain();
+        int register = mTestProgram.compile(wrapper);
+        mTestProgram.solve();
+        assertEquals(246, mTestProgram.getValue(register));
+        wrapper.release();
+    }
+
+    public void testSharedNodesCompiledOnce() {
+        LayoutMath.Value x = mTestMath.variable(10);
+        LayoutMath.Value sum = x.add(x);
+        int r1 = mTestProgram.compile(sum);
+        int r2 = mTestProgram.compile(sum.multiply(sum));
+        assertEquals(3, mTestProgram.size());
+        mTestProgram.solve();
+        assertEquals(20, mTestProgram.getValue(r1));
+        assertEquals(400, mTestProgram.getValue(r2));
+    }
+
+    public void testAllOperations() {
+        LayoutMath.Value a = mTestMath.variable(7);
+        LayoutMath.Value b = mTestMath.variable(2);
+        int add = mTestProgram.compile(a.add(b));
+        int subtract = mTestProgram.compile(a.subtract(b));
+        int multiply = mTestProgram.compile(a.multiply(b));
+        int divide = mTestProgram.compile(a.divide(b));
+        int min = mTestProgram.compile(a.min(b));
+        int max = mTestProgram.compile(a.max(b));
+        mTestProgram.solve();
+        assertEquals(9, mTestProgram.getValue(add));
+        assertEquals(5, mTestProgram.getValue(subtract));
+        assertEquals(14, mTestProgram.getValue(multiply));
+        assertEquals(3, mTestProgram.getValue(divide));
+        assertEquals(2, mTestProgram.getValue(min));
+        assertEquals(7, mTestProgram.getValue(max));
+    }
+
+    public void testDivisionByZero() {
+        LayoutMath.Variable zero = mTestMath.variable(0);
+        mTestProgram.compile(mTestMath.variable(7).divide(zero));
+        try {
+            mTestProgram.solve();
+            fail("Division by zero should throw like LayoutMath");
+        } catch (ArithmeticException e) {
+        }
+        // Constants are not folded when dividing by zero.
+        LayoutProgram program = new LayoutProgram(mTestMath);
+        program.compile(mTestMath.constant(7).divide(mTestMath.constant(0)));
+        try {
+            program.solve();
+            fail("Division by zero should throw like LayoutMath");
+        } catch (ArithmeticException e) {
+        }
+    }
+
+    public void testSumAndMulDiv() {
+        LayoutMath.Variable a = mTestMath.variable(1);
+        LayoutMath.Variable b = mTestMath.variable(2);
+        LayoutMath.Variable c = mTestMath.variable(3);
+        LayoutMath.Value[] operands = new LayoutMath.Value[] { a, mTestMath.constant(10), b, c, mTestMath.constant(20) };
+        int sum = mTestProgram.compile(mTestMath.sum(operands, operands.length));
+        int mulDiv = mTestProgram.compile(mTestMath.variable(2000000).mulDiv(mTestMath.variable(3000), mTestMath.constant(6000)));
+        mTestProgram.solve();
+        assertEquals(36, mTestProgram.getValue(sum));
+        assertEquals(1000000, mTestProgram.getValue(mulDiv));
+        c.setValue(4);
+        mTestProgram.solve();
+        assertEquals(37, mTestProgram.getValue(sum));
+    }
+
+    public void testUnknownValue() {
+        LayoutMath.ValueWrapper wrapper = mTestMath.wrap();
+        int register = mTestProgram.compile(wrapper.add(mTestMath.variable(1)));
+        mTestProgram.solve();
+        try {
+            mTestProgram.getValue(register);
+            fail("Unknown value should not be resolved");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testVariableChangeWithoutRecompiling() {
+        LayoutMath.Variable x = mTestMath.variable(10);
+        int register = mTestProgram.compile(x.multiply(mTestMath.variable(3)));
+        mTestProgram.solve();
+        assertEquals(30, mTestProgram.getValue(register));
+        x.setValue(5);
+        mTestProgram.solve();
+        assertEquals(15, mTestProgram.getValue(register));
+    }
+
+    public void testOnlyDependentsSolvedAgain() {
+        LayoutMath.Variable x = mTestMath.variable(10);
+        LayoutMath.Variable y = mTestMath.variable(20);
+        int sum = mTestProgram.compile(x.add(mTestMath.variable(1)));
+        int product = mTestProgram.compile(y.multiply(mTestMath.constant(2)));
+        int max = mTestProgram.compile(x.max(mTestMath.constant(50)));
+        mTestProgram.solve();
+        int lastSolve = mTestProgram.getSolveCount();
+        x.setValue(15);
+        mTestProgram.solve();
+        assertEquals(16, mTestProgram.getValue(sum));
+        assertEquals(40, mTestProgram.getValue(product));
+        assertEquals(50, mTestProgram.getValue(max));
+        assertTrue(mTestProgram.hasChangedSince(sum, lastSolve));
+        assertFalse(mTestProgram.hasChangedSince(product, lastSolve));
+        assertFalse(mTestProgram.hasChangedSince(max, lastSolve));
+    }
+
+    public void testCircularDependency() {
+        LayoutMath.ValueWrapper a = mTestMath.wrap().retain();
+        LayoutMath.ValueWrapper b = mTestMath.wrap().retain();
+        LayoutMath.Value sum = b.add(mTestMath.variable(1));
+        a.setValueObject(sum);
+        b.setValueObject(a);
+        try {
+            mTestProgram.compile(a);
+            fail("Cycle should be detected");
+        } catch (LayoutProgram.CircularDependencyException e) {
+            LayoutMath.Value[] cycle = e.getCycle();
+            assertEquals(4, cycle.length);
+            assertSame(a, cycle[0]);
+            assertSame(sum, cycle[1]);
+            assertSame(b, cycle[2]);
+            assertSame(a, cycle[3]);
+        }
+        assertFalse(mTestProgram.isUpToDate());
+    }
+
+    public void testDeepGraph() {
+        LayoutMath.Value value = mTestMath.variable(0);
+        LayoutMath.Value one = mTestMath.variable(1);
+        for (int i = 0; i < 100000; i++) {
+            value = mTestMath.wrap(value.add(one));
+        }
+        int register = mTestProgram.compile(value);
+        mTestProgram.solve();
+        assertEquals(100000, mTestProgram.getValue(register));
+    }
+
+    public void testRecompilationNeededAfterStructureChange() {
+        LayoutMath.ValueWrapper wrapper = mTestMath.wrap(mTestMath.variable(1)).retain();
+        mTestProgram.reset();
+        int register = mTestProgram.compile(wrapper);
+        assertTrue(mTestProgram.isUpToDate());
+        wrapper.setValueObject(mTestMath.variable(2));
+        assertFalse(mTestProgram.isUpToDate());
+        mTestProgram.reset();
+        register = mTestProgram.compile(wrapper);
+        mTestProgram.solve();
+        assertEquals(2, mTestProgram.getValue(register));
+        wrapper.release();
+    }
+
+    public void testSeparatePrograms() {
+        LayoutProgram otherProgram = new LayoutProgram(mTestMath);
+        LayoutMath.ValueWrapper x = mTestMath.wrap(mTestMath.variable(1)).retain();
+        LayoutMath.ValueWrapper y = mTestMath.wrap(mTestMath.variable(2)).retain();
+        mTestProgram.reset();
+        mTestProgram.compile(x);
+        otherProgram.reset();
+        otherProgram.compile(y);
+        x.setValueObject(mTestMath.variable(3));
+        assertFalse(mTestProgram.isUpToDate());
+        assertTrue(otherProgram.isUpToDate());
+        x.release();
+        y.release();
+        assertFalse(otherProgram.isUpToDate());
+    }
+
+    public void testConstantFolding() {
+        LayoutMath.Value size = mTestMath.constant(40).add(mTestMath.constant(8));
+        int register = mTestProgram.compile(size.divide(mTestMath.constant(2)));
+        assertEquals(5, mTestProgram.getNodeCount());
+        assertEquals(1, mTestProgram.size());
+        mTestProgram.solve();
+        assertEquals(24, mTestProgram.getValue(register));
+    }
+
+    public void testWrapperElision() {
+        LayoutMath.Variable x = mTestMath.variable(3);
+        LayoutMath.Value value = x;
+        for (int i = 0; i < 5; i++) {
+            value = mTestMath.wrap(value);
+        }
+        int register = mTestProgram.compile(value);
+        assertEquals(6, mTestProgram.getNodeCount());
+        assertEquals(1, mTestProgram.size());
+        mTestProgram.solve();
+        assertEquals(3, mTestProgram.getValue(register));
+    }
+
+    public void testIdenticalNodesMerged() {
+        LayoutMath.Variable left = mTestMath.variable(10);
+        LayoutMath.Variable right = mTestMath.variable(50);
+        int r1 = mTestProgram.compile(left.add(right).divide(mTestMath.constant(2)));
+        int r2 = mTestProgram.compile(right.add(left).divide(mTestMath.constant(2)));
+        assertEquals(r1, r2);
+        assertEquals(5, mTestProgram.size());
+        mTestProgram.solve();
+        assertEquals(30, mTestProgram.getValue(r2));
+    }
+
+    public void testDependsOn() {
+        LayoutMath.Variable parent = mTestMath.variable();
+        LayoutMath.Variable x = mTestMath.variable(10);
+        int independent = mTestProgram.compile(x.add(mTestMath.constant(5)));
+        int dependent = mTestProgram.compile(x.max(parent.subtract(mTestMath.constant(5))));
+        assertFalse(mTestProgram.dependsOn(independent, parent));
+        assertTrue(mTestProgram.dependsOn(dependent, parent));
+        assertTrue(mTestProgram.dependsOn(dependent, x));
+        int added = mTestProgram.compile(mTestMath.wrap(parent).multiply(mTestMath.constant(2)));
+        assertTrue(mTestProgram.dependsOn(added, parent));
+        mTestProgram.solve();
+        assertEquals(15, mTestProgram.getValue(independent));
+        parent.setValue(30);
+        mTestProgram.solve();
+        assertEquals(25, mTestProgram.getValue(dependent));
+        assertFalse(mTestProgram.dependsOn(independent, parent));
+    }
+
+    public void testConstantCannotChange() {
+        LayoutMath.Variable c = mTestMath.constant(1);
+        try {
+            c.setValue(2);
+            fail("Constant should not be changed");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        mTestProgram = null;
+        mTestMath = null;
+    }
+}
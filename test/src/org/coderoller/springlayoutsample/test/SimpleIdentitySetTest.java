@@ -0,0 +1,72 @@
+package org.coderoller.springlayoutsample.test;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.coderoller.springlayout.SimpleIdentitySet;
+
+public class SimpleIdentitySetTest extends TestCase {
+    SimpleIdentitySet<Object> mTestSet;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mTestSet = new SimpleIdentitySet<Object>();
+    }
+
+    public void testIdentity() {
+        String a = new String("a");
+        String b = new String("a");
+        assertTrue(mTestSet.add(a));
+        assertTrue(mTestSet.add(b));
+        assertFalse(mTestSet.add(a));
+        assertEquals(2, mTestSet.size());
+        assertTrue(mTestSet.contains(b));
+        assertFalse(mTestSet.contains(new String("a")));
+    }
+
+    public void testGrowAndRemove() {
+        Object[] objects = new Object[1000];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = new Object();
+            mTestSet.add(objects[i]);
+        }
+        assertEquals(1000, mTestSet.size());
+        assertSame(objects[10], mTestSet.get(10));
+        for (int i = 0; i < objects.length; i += 2) {
+            assertTrue(mTestSet.remove(objects[i]));
+        }
+        assertEquals(500, mTestSet.size());
+        for (int i = 0; i < objects.length; i++) {
+            assertEquals(i % 2 == 1, mTestSet.contains(objects[i]));
+        }
+        mTestSet.clear();
+        assertTrue(mTestSet.isEmpty());
+        assertFalse(mTestSet.contains(objects[1]));
+    }
+
+    public void testIterator() {
+        Object a = new Object();
+        Object b = new Object();
+        Object c = new Object();
+        mTestSet.add(a);
+        mTestSet.add(b);
+        mTestSet.add(c);
+        Iterator<Object> iterator = mTestSet.iterator();
+        assertSame(a, iterator.next());
+        iterator.remove();
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertNotSame(a, iterator.next());
+            count++;
+        }
+        assertEquals(2, count);
+        assertEquals(2, mTestSet.size());
+        assertFalse(mTestSet.contains(a));
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        mTestSet = null;
+    }
+}
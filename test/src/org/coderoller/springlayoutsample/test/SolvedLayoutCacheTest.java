@@ -0,0 +1,162 @@
+package org.coderoller.springlayoutsample.test;
+
+import android.test.AndroidTestCase;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+import org.coderoller.springlayout.SpringLayout;
+
+public class SolvedLayoutCacheTest extends AndroidTestCase {
+    private static final int WIDE = MeasureSpec.makeMeasureSpec(480, MeasureSpec.EXACTLY);
+    private static final int NARROW = MeasureSpec.makeMeasureSpec(320, MeasureSpec.EXACTLY);
+    private static final int AT_MOST = MeasureSpec.makeMeasureSpec(480, MeasureSpec.AT_MOST);
+
+    SpringLayout mLayout;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mLayout = createLayout();
+    }
+
+    /**
+     * @return Layout with a fixed size child on the right and a child
+     *         filling the rest of the width.
+     */
+    private SpringLayout createLayout() {
+        final SpringLayout layout = new SpringLayout(getContext());
+        final View button = new View(getContext());
+        button.setId(1);
+        final SpringLayout.LayoutParams buttonParams = new SpringLayout.LayoutParams(100, 40);
+        buttonParams.addRelation(SpringLayout.ALIGN_RIGHT, SpringLayout.PARENT);
+        layout.addView(button, buttonParams);
+        final View label = new View(getContext());
+        label.setId(2);
+        final SpringLayout.LayoutParams labelParams = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.WRAP_CONTENT, 20);
+        labelParams.addRelation(SpringLayout.ALIGN_LEFT, SpringLayout.PARENT);
+        labelParams.addRelation(SpringLayout.LEFT_OF, 1);
+        layout.addView(label, labelParams);
+        return layout;
+    }
+
+    private static void layoutPass(SpringLayout layout, int widthMeasureSpec, int heightMeasureSpec) {
+        layout.measure(widthMeasureSpec, heightMeasureSpec);
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+    }
+
+    private static int exactly(int size) {
+        return MeasureSpec.makeMeasureSpec(size, MeasureSpec.EXACTLY);
+    }
+
+    /**
+     * Checks the bounds and measured sizes against a layout solved from
+     * scratch.
+     */
+    private static void assertSameLayout(SpringLayout expected, SpringLayout actual) {
+        assertEquals(expected.getMeasuredWidth(), actual.getMeasuredWidth());
+        assertEquals(expected.getMeasuredHeight(), actual.getMeasuredHeight());
+        assertEquals(expected.getChildCount(), actual.getChildCount());
+        for (int i = 0; i < expected.getChildCount(); i++) {
+            final View expectedChild = expected.getChildAt(i), actualChild = actual.getChildAt(i);
+            assertEquals(expectedChild.getLeft(), actualChild.getLeft());
+            assertEquals(expectedChild.getTop(), actualChild.getTop());
+            assertEquals(expectedChild.getRight(), actualChild.getRight());
+            assertEquals(expectedChild.getBottom(), actualChild.getBottom());
+            assertEquals(expectedChild.getMeasuredWidth(), actualChild.getMeasuredWidth());
+            assertEquals(expectedChild.getMeasuredHeight(), actualChild.getMeasuredHeight());
+        }
+    }
+
+    /**
+     * Lays the layout out with the width and checks it against a fresh
+     * layout.
+     */
+    private void assertLayout(int width, boolean restored) {
+        layoutPass(mLayout, exactly(width), WIDE);
+        assertEquals(restored, mLayout.isSolvedLayoutRestored());
+        final SpringLayout fresh = createLayout();
+        layoutPass(fresh, exactly(width), WIDE);
+        assertSameLayout(fresh, mLayout);
+    }
+
+    public void testLayoutRestored() {
+        assertLayout(480, false);
+        assertLayout(320, false);
+        assertLayout(480, true);
+        assertEquals(380, mLayout.getChildAt(0).getLeft());
+        assertLayout(320, true);
+        assertEquals(220, mLayout.getChildAt(0).getLeft());
+    }
+
+    public void testLeastRecentlyUsedEviction() {
+        // Fills the four entries of the cache.
+        assertLayout(480, false);
+        assertLayout(470, false);
+        assertLayout(460, false);
+        assertLayout(450, false);
+        // The first layout is used again, the second one is the oldest now.
+        assertLayout(480, true);
+        assertLayout(440, false);
+        assertLayout(460, true);
+        assertLayout(450, true);
+        assertLayout(480, true);
+        assertLayout(440, true);
+        assertLayout(470, false);
+    }
+
+    /**
+     * Lays the changed layout out with both widths, the second one was
+     * cached before the change, and compares it to a fresh layout.
+     */
+    private void assertSolvedAfterChange(SpringLayout fresh, int heightMeasureSpec) {
+        layoutPass(mLayout, WIDE, heightMeasureSpec);
+        assertFalse(mLayout.isSolvedLayoutRestored());
+        layoutPass(mLayout, NARROW, heightMeasureSpec);
+        assertFalse(mLayout.isSolvedLayoutRestored());
+        layoutPass(fresh, NARROW, heightMeasureSpec);
+        assertSameLayout(fresh, mLayout);
+    }
+
+    public void testClearedOnConstraintChange() {
+        layoutPass(mLayout, WIDE, WIDE);
+        layoutPass(mLayout, NARROW, WIDE);
+        ((SpringLayout.LayoutParams) mLayout.getChildAt(1).getLayoutParams()).addRelation(SpringLayout.BELOW, 1);
+        mLayout.getChildAt(1).requestLayout();
+        final SpringLayout fresh = createLayout();
+        ((SpringLayout.LayoutParams) fresh.getChildAt(1).getLayoutParams()).addRelation(SpringLayout.BELOW, 1);
+        assertSolvedAfterChange(fresh, WIDE);
+        assertEquals(40, mLayout.getChildAt(1).getTop());
+    }
+
+    private static void addBottomChild(SpringLayout layout) {
+        final View child = new View(layout.getContext());
+        child.setId(3);
+        final SpringLayout.LayoutParams params = new SpringLayout.LayoutParams(50, 30);
+        params.addRelation(SpringLayout.ALIGN_BOTTOM, SpringLayout.PARENT);
+        layout.addView(child, params);
+    }
+
+    public void testClearedOnChildChange() {
+        layoutPass(mLayout, WIDE, WIDE);
+        layoutPass(mLayout, NARROW, WIDE);
+        addBottomChild(mLayout);
+        final SpringLayout fresh = createLayout();
+        addBottomChild(fresh);
+        assertSolvedAfterChange(fresh, WIDE);
+        assertEquals(450, mLayout.getChildAt(2).getTop());
+    }
+
+    public void testClearedOnMinimumSizeChange() {
+        layoutPass(mLayout, WIDE, AT_MOST);
+        layoutPass(mLayout, NARROW, AT_MOST);
+        mLayout.setMinimumHeight(300);
+        final SpringLayout fresh = createLayout();
+        fresh.setMinimumHeight(300);
+        assertSolvedAfterChange(fresh, AT_MOST);
+        assertEquals(300, mLayout.getMeasuredHeight());
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        mLayout = null;
+    }
+}
@@ -0,0 +1,138 @@
+package org.coderoller.springlayoutsample.test;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+import org.coderoller.springlayout.SpringLayout;
+
+public class SpringLayoutAllocationTest extends AndroidTestCase {
+    private static final int ITERATIONS = 20;
+
+    SpringLayout mLayout;
+    View mSpring;
+    View mLast;
+    int mSpec;
+    int mPassCount;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mLayout = new SpringLayout(getContext());
+        mSpec = MeasureSpec.makeMeasureSpec(480, MeasureSpec.EXACTLY);
+        for (int i = 1; i <= 10; i++) {
+            final View child = new View(getContext());
+            child.setId(i);
+            final SpringLayout.LayoutParams params = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.WRAP_CONTENT,
+                    SpringLayout.LayoutParams.WRAP_CONTENT);
+            if (i > 1) {
+                params.addRelation(SpringLayout.BELOW, i - 1);
+            }
+            mLayout.addView(child, params);
+            mLast = child;
+        }
+        mSpring = new View(getContext());
+        mSpring.setId(11);
+        final SpringLayout.LayoutParams springParams = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.WRAP_CONTENT,
+                SpringLayout.LayoutParams.WRAP_CONTENT);
+        springParams.addRelation(SpringLayout.ALIGN_LEFT, SpringLayout.PARENT);
+        springParams.setWidthWeight(1);
+        mLayout.addView(mSpring, springParams);
+        final View right = new View(getContext());
+        right.setId(12);
+        final SpringLayout.LayoutParams rightParams = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.WRAP_CONTENT,
+                SpringLayout.LayoutParams.WRAP_CONTENT);
+        rightParams.addRelation(SpringLayout.RIGHT_OF, 11);
+        rightParams.addRelation(SpringLayout.ALIGN_RIGHT, SpringLayout.PARENT);
+        rightParams.setWidthWeight(1);
+        mLayout.addView(right, rightParams);
+    }
+
+    private void layoutPass() {
+        mLayout.requestLayout();
+        mLayout.measure(mSpec, mSpec);
+        mLayout.layout(0, 0, 480, 480);
+    }
+
+    private void rebuildPass() {
+        ((SpringLayout.LayoutParams) mSpring.getLayoutParams()).setWidthWeight(1 + (mPassCount++ & 1));
+        layoutPass();
+    }
+
+    private void alternatingSpecsPass() {
+        mLayout.requestLayout();
+        mLayout.measure(MeasureSpec.makeMeasureSpec(320, MeasureSpec.EXACTLY), mSpec);
+        mLayout.measure(mSpec, mSpec);
+        mLayout.layout(0, 0, 480, 480);
+    }
+
+    private void childChurnPass() {
+        mLayout.removeView(mLast);
+        layoutPass();
+        mLayout.addView(mLast, 9);
+        layoutPass();
+    }
+
+    /**
+     * Warms the layout up with the pass, then checks that running it again
+     * does not allocate.
+     */
+    private static void assertNoAllocations(Runnable pass) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            pass.run();
+        }
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < ITERATIONS; i++) {
+                pass.run();
+            }
+            assertEquals(0, Debug.getThreadAllocCount());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public void testSteadyStateDoesNotAllocate() {
+        assertNoAllocations(new Runnable() {
+            @Override
+            public void run() {
+                layoutPass();
+            }
+        });
+    }
+
+    public void testRebuildDoesNotAllocate() {
+        assertNoAllocations(new Runnable() {
+            @Override
+            public void run() {
+                rebuildPass();
+            }
+        });
+    }
+
+    public void testAlternatingSpecsDoNotAllocate() {
+        assertNoAllocations(new Runnable() {
+            @Override
+            public void run() {
+                alternatingSpecsPass();
+            }
+        });
+    }
+
+    public void testChildChurnDoesNotAllocate() {
+        assertNoAllocations(new Runnable() {
+            @Override
+            public void run() {
+                childChurnPass();
+            }
+        });
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        mLayout = null;
+        mSpring = null;
+        mLast = null;
+    }
+}
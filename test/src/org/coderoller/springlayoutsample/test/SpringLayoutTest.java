@@ -0,0 +1,216 @@
+package org.coderoller.springlayoutsample.test;
+
+import android.test.AndroidTestCase;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+import org.coderoller.springlayout.LayoutMath;
+import org.coderoller.springlayout.SpringLayout;
+
+public class SpringLayoutTest extends AndroidTestCase {
+    private static final int SIZE = 480;
+
+    /**
+     * View with a content size given by the test, e.g. a text which changes.
+     */
+    static class ContentView extends View {
+        int contentWidth, contentHeight;
+        int layoutCount;
+
+        ContentView(SpringLayoutTest test, int id, int contentWidth, int contentHeight) {
+            super(test.getContext());
+            setId(id);
+            this.contentWidth = contentWidth;
+            this.contentHeight = contentHeight;
+        }
+
+        void setContentSize(int contentWidth, int contentHeight) {
+            this.contentWidth = contentWidth;
+            this.contentHeight = contentHeight;
+            requestLayout();
+        }
+
+        @Override
+        protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            setMeasuredDimension(resolveSize(contentWidth, widthMeasureSpec), resolveSize(contentHeight, heightMeasureSpec));
+        }
+
+        @Override
+        protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+            layoutCount++;
+        }
+    }
+
+    /**
+     * Layout which can be detached like by its window.
+     */
+    static class DetachableSpringLayout extends SpringLayout {
+        DetachableSpringLayout(SpringLayoutTest test) {
+            super(test.getContext());
+        }
+
+        void detach() {
+            onDetachedFromWindow();
+        }
+    }
+
+    SpringLayout mLayout;
+    ContentView mLabel;
+    ContentView mButton;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mLayout = new SpringLayout(getContext());
+        addChildren();
+    }
+
+    private void addChildren() {
+        mButton = new ContentView(this, 1, 100, 40);
+        final SpringLayout.LayoutParams buttonParams = new SpringLayout.LayoutParams(100, SpringLayout.LayoutParams.WRAP_CONTENT);
+        buttonParams.addRelation(SpringLayout.ALIGN_RIGHT, SpringLayout.PARENT);
+        mLayout.addView(mButton, buttonParams);
+        // Both horizontal edges are anchored, the height follows the content.
+        mLabel = new ContentView(this, 2, 50, 20);
+        final SpringLayout.LayoutParams labelParams = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.WRAP_CONTENT,
+                SpringLayout.LayoutParams.WRAP_CONTENT);
+        labelParams.addRelation(SpringLayout.ALIGN_LEFT, SpringLayout.PARENT);
+        labelParams.addRelation(SpringLayout.LEFT_OF, 1);
+        mLayout.addView(mLabel, labelParams);
+    }
+
+    private void layoutPass(int widthMeasureSpec, int heightMeasureSpec) {
+        mLayout.measure(widthMeasureSpec, heightMeasureSpec);
+        mLayout.layout(0, 0, mLayout.getMeasuredWidth(), mLayout.getMeasuredHeight());
+    }
+
+    private void layoutPass() {
+        final int spec = MeasureSpec.makeMeasureSpec(SIZE, MeasureSpec.EXACTLY);
+        layoutPass(spec, spec);
+    }
+
+    private static void assertBounds(View view, int left, int top, int right, int bottom) {
+        assertEquals(left, view.getLeft());
+        assertEquals(top, view.getTop());
+        assertEquals(right, view.getRight());
+        assertEquals(bottom, view.getBottom());
+        assertEquals(right - left, view.getMeasuredWidth());
+        assertEquals(bottom - top, view.getMeasuredHeight());
+    }
+
+    public void testLayout() {
+        layoutPass();
+        assertBounds(mButton, 380, 0, 480, 40);
+        assertBounds(mLabel, 0, 0, 380, 20);
+    }
+
+    public void testContentChangeKeepingSizeOfAnchoredChild() {
+        layoutPass();
+        mLabel.setContentSize(70, 20);
+        layoutPass();
+        assertBounds(mLabel, 0, 0, 380, 20);
+        assertFalse(mLabel.isLayoutRequested());
+    }
+
+    public void testReplacedLayoutParams() {
+        layoutPass();
+        final SpringLayout.LayoutParams buttonParams = new SpringLayout.LayoutParams(100, SpringLayout.LayoutParams.WRAP_CONTENT);
+        buttonParams.addRelation(SpringLayout.ALIGN_BOTTOM, SpringLayout.PARENT);
+        buttonParams.addRelation(SpringLayout.ALIGN_RIGHT, SpringLayout.PARENT);
+        mButton.setLayoutParams(buttonParams);
+        layoutPass();
+        assertBounds(mButton, 380, 440, 480, 480);
+        assertBounds(mLabel, 0, 0, 380, 20);
+        // The new LayoutParams report their changes like the replaced ones.
+        buttonParams.addRelation(SpringLayout.ALIGN_BOTTOM, 0);
+        buttonParams.addRelation(SpringLayout.ALIGN_TOP, SpringLayout.PARENT);
+        mButton.requestLayout();
+        layoutPass();
+        assertBounds(mButton, 380, 0, 480, 40);
+    }
+
+    public void testChildMeasuredWithNewSpecIsLaidOut() {
+        layoutPass();
+        final int layoutCount = mButton.layoutCount;
+        // The button keeps its bounds, but is measured with a new spec.
+        layoutPass(MeasureSpec.makeMeasureSpec(SIZE, MeasureSpec.EXACTLY), MeasureSpec.makeMeasureSpec(320, MeasureSpec.EXACTLY));
+        assertBounds(mButton, 380, 0, 480, 40);
+        assertEquals(layoutCount + 1, mButton.layoutCount);
+        layoutPass(MeasureSpec.makeMeasureSpec(SIZE, MeasureSpec.EXACTLY), MeasureSpec.makeMeasureSpec(320, MeasureSpec.EXACTLY));
+        assertEquals(layoutCount + 1, mButton.layoutCount);
+    }
+
+    private static int getTotalMisses(LayoutMath.Stats stats) {
+        int misses = 0;
+        for (int type = 0; type < LayoutMath.Stats.TYPE_COUNT; type++) {
+            misses += stats.getMisses(type);
+        }
+        return misses;
+    }
+
+    private static int getTotalAcquired(LayoutMath.Stats stats) {
+        int acquired = 0;
+        for (int type = 0; type < LayoutMath.Stats.TYPE_COUNT; type++) {
+            acquired += stats.getHits(type) + stats.getMisses(type);
+        }
+        return acquired;
+    }
+
+    public void testSharedLayoutMathReusesNodesOfDetachedLayout() {
+        SpringLayout.setSharedLayoutMathEnabled(true);
+        try {
+            final DetachableSpringLayout first = new DetachableSpringLayout(this);
+            mLayout = first;
+            addChildren();
+            layoutPass();
+            first.detach();
+
+            final LayoutMath.Stats before = LayoutMath.getThreadInstance().getStats();
+            mLayout = new DetachableSpringLayout(this);
+            addChildren();
+            layoutPass();
+            final LayoutMath.Stats after = LayoutMath.getThreadInstance().getStats();
+            assertEquals(0, getTotalMisses(after) - getTotalMisses(before));
+            assertEquals(0, getTotalMisses(mLayout.getInstanceLayoutMathStats()));
+            assertBounds(mButton, 380, 0, 480, 40);
+            assertBounds(mLabel, 0, 0, 380, 20);
+        } finally {
+            SpringLayout.setSharedLayoutMathEnabled(false);
+        }
+    }
+
+    public void testSharedLayoutMathStatsOfNestedLayout() {
+        SpringLayout.setSharedLayoutMathEnabled(true);
+        try {
+            final LayoutMath.Stats before = LayoutMath.getThreadInstance().getStats();
+            final SpringLayout nested = new SpringLayout(getContext());
+            final ContentView content = new ContentView(this, 1, 50, 30);
+            final SpringLayout.LayoutParams contentParams = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.WRAP_CONTENT,
+                    SpringLayout.LayoutParams.WRAP_CONTENT);
+            nested.addView(content, contentParams);
+            final SpringLayout.LayoutParams nestedParams = new SpringLayout.LayoutParams(SpringLayout.LayoutParams.WRAP_CONTENT,
+                    SpringLayout.LayoutParams.WRAP_CONTENT);
+            nestedParams.addRelation(SpringLayout.BELOW, 1);
+            mLayout = new SpringLayout(getContext());
+            addChildren();
+            mLayout.addView(nested, 0, nestedParams);
+            layoutPass();
+            final LayoutMath.Stats after = LayoutMath.getThreadInstance().getStats();
+            // Nodes taken by the parent after measuring the nested layout
+            // are attributed to the parent as well.
+            assertEquals(getTotalAcquired(after) - getTotalAcquired(before),
+                    getTotalAcquired(mLayout.getInstanceLayoutMathStats()) + getTotalAcquired(nested.getInstanceLayoutMathStats()));
+            assertTrue(getTotalAcquired(nested.getInstanceLayoutMathStats()) > 0);
+            assertBounds(nested, 0, 40, 50, 70);
+            assertBounds(content, 0, 0, 50, 30);
+        } finally {
+            SpringLayout.setSharedLayoutMathEnabled(false);
+        }
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        mLayout = null;
+        mLabel = null;
+        mButton = null;
+    }
+}